@@ -0,0 +1,310 @@
+package com.fabrikam.azure.batch;
+
+/**
+ * Sample class that uploads a Batch application package to the storage URL the service hands
+ * out for it. The file is sent as a block blob in fixed size blocks that are read with
+ * positional FileChannel reads into reusable direct buffers and uploaded on several threads,
+ * so the package is never held on the heap. Every block carries its MD5 so storage rejects
+ * corrupted blocks, and finished blocks are recorded in a journal next to the file so a
+ * failed upload resumes where it stopped. An empty file has no blocks and is sent with a
+ * single Put Blob instead.
+ *
+ */
+
+import com.google.common.io.BaseEncoding;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+
+public class ApplicationPackageUploader {
+
+    public static final int DEFAULT_BLOCK_SIZE = 8 * 1024 * 1024;
+    private static final String STORAGE_VERSION = "2016-05-31";
+    private static final int BLOCK_ATTEMPTS = 3;
+    private static final long BASE_RETRY_DELAY_MILLIS = 500;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final int parallelism;
+    private final int blockSize;
+
+    public ApplicationPackageUploader(int parallelism) {
+        this(parallelism, DEFAULT_BLOCK_SIZE);
+    }
+
+    // block size must stay the same between an upload and its resume, it is part of the journal
+    public ApplicationPackageUploader(int parallelism, int blockSize) {
+        this.parallelism = parallelism;
+        this.blockSize = blockSize;
+    }
+
+    // upload a package file to the SAS URL of its blob, skipping blocks a previous attempt already uploaded
+    public void upload(File packageFile, String sasUrl) throws IOException, InterruptedException {
+        final FileChannel channel = FileChannel.open(packageFile.toPath(), StandardOpenOption.READ);
+        try {
+            long size = channel.size();
+            if (size == 0) {
+                // storage refuses empty blocks, and a block list needs at least one
+                putEmptyBlob(sasUrl);
+                return;
+            }
+            final int blockCount = (int) ((size + blockSize - 1) / blockSize);
+            File journalFile = new File(packageFile.getPath() + ".upload");
+            // blocks already uploaded belong to one blob; a new SAS for the same blob still matches
+            String journalHeader = size + " " + packageFile.lastModified() + " " + blockSize + " " + withoutQuery(sasUrl);
+            Map<Integer, String> uploaded = readJournal(journalFile, journalHeader);
+            final Writer journal = openJournal(journalFile, journalHeader, !uploaded.isEmpty());
+
+            // one direct buffer per upload thread, handed back after each block
+            final BlockingQueue<ByteBuffer> buffers = new LinkedBlockingQueue<ByteBuffer>();
+            for (int i = 0; i < Math.min(parallelism, blockCount); i++) {
+                buffers.add(ByteBuffer.allocateDirect(blockSize));
+            }
+
+            ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+            List<Future<Void>> blocks = new ArrayList<Future<Void>>();
+            try {
+                for (int i = 0; i < blockCount; i++) {
+                    if (uploaded.containsKey(i)) {
+                        continue;
+                    }
+                    final int index = i;
+                    final String blockUrl = sasUrl + "&comp=block&blockid=" + URLEncoder.encode(blockId(index), "UTF-8");
+                    final long offset = (long) index * blockSize;
+                    final int length = (int) Math.min(blockSize, size - offset);
+                    blocks.add(executor.submit(new Callable<Void>() {
+                        public Void call() throws Exception {
+                            ByteBuffer buffer = buffers.take();
+                            try {
+                                readBlock(channel, buffer, offset, length);
+                                String md5 = md5(buffer);
+                                putBlock(blockUrl, buffer, md5);
+                                synchronized (journal) {
+                                    journal.write(index + " " + md5 + "\n");
+                                    journal.flush();
+                                }
+                                return null;
+                            } finally {
+                                buffers.add(buffer);
+                            }
+                        }
+                    }));
+                }
+
+                for (Future<Void> block : blocks) {
+                    try {
+                        block.get();
+                    } catch (ExecutionException e) {
+                        throw new IOException("Block upload failed, rerun to resume: " + e.getCause().getMessage(), e.getCause());
+                    }
+                }
+            } finally {
+                executor.shutdownNow();
+                journal.close();
+            }
+
+            putBlockList(sasUrl, blockCount);
+            journalFile.delete();
+        } finally {
+            channel.close();
+        }
+    }
+
+    private static void readBlock(FileChannel channel, ByteBuffer buffer, long offset, int length) throws IOException {
+        buffer.clear();
+        buffer.limit(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) < 0) {
+                throw new IOException("Package file shrank during upload");
+            }
+        }
+        buffer.flip();
+    }
+
+    private static String md5(ByteBuffer block) throws NoSuchAlgorithmException {
+        MessageDigest digest = MessageDigest.getInstance("MD5");
+        digest.update(block.duplicate());
+        return BaseEncoding.base64().encode(digest.digest());
+    }
+
+    // storage checks the block against its Content-MD5 and refuses it on a mismatch
+    private static void putBlock(String blockUrl, ByteBuffer block, String md5) throws IOException {
+        IOException lastError = null;
+        for (int attempt = 1; attempt <= BLOCK_ATTEMPTS; attempt++) {
+            HttpURLConnection connection = (HttpURLConnection) new URL(blockUrl).openConnection();
+            try {
+                connection.setRequestMethod("PUT");
+                connection.setDoOutput(true);
+                connection.setFixedLengthStreamingMode(block.remaining());
+                connection.setRequestProperty("x-ms-version", STORAGE_VERSION);
+                connection.setRequestProperty("Content-MD5", md5);
+                OutputStream out = connection.getOutputStream();
+                WritableByteChannel body = Channels.newChannel(out);
+                ByteBuffer view = block.duplicate();
+                while (view.hasRemaining()) {
+                    body.write(view);
+                }
+                out.close();
+                int status = connection.getResponseCode();
+                if (status == HttpURLConnection.HTTP_CREATED) {
+                    return;
+                }
+                lastError = new IOException("Put Block returned " + status + ": " + readError(connection));
+            } catch (IOException e) {
+                lastError = e;
+            } finally {
+                connection.disconnect();
+            }
+            if (attempt < BLOCK_ATTEMPTS) {
+                // give a throttled or busy storage account room before trying the block again
+                try {
+                    Thread.sleep(BASE_RETRY_DELAY_MILLIS << (attempt - 1));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while retrying a block");
+                }
+            }
+        }
+        throw lastError;
+    }
+
+    private static void putEmptyBlob(String sasUrl) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(sasUrl).openConnection();
+        try {
+            connection.setRequestMethod("PUT");
+            connection.setDoOutput(true);
+            connection.setFixedLengthStreamingMode(0);
+            connection.setRequestProperty("x-ms-version", STORAGE_VERSION);
+            connection.setRequestProperty("x-ms-blob-type", "BlockBlob");
+            connection.getOutputStream().close();
+            int status = connection.getResponseCode();
+            if (status != HttpURLConnection.HTTP_CREATED) {
+                throw new IOException("Put Blob returned " + status + ": " + readError(connection));
+            }
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private void putBlockList(String sasUrl, int blockCount) throws IOException {
+        StringBuilder xml = new StringBuilder("<?xml version=\"1.0\" encoding=\"utf-8\"?><BlockList>");
+        for (int i = 0; i < blockCount; i++) {
+            xml.append("<Latest>").append(blockId(i)).append("</Latest>");
+        }
+        xml.append("</BlockList>");
+        byte[] body = xml.toString().getBytes(UTF8);
+
+        HttpURLConnection connection = (HttpURLConnection) new URL(sasUrl + "&comp=blocklist").openConnection();
+        try {
+            connection.setRequestMethod("PUT");
+            connection.setDoOutput(true);
+            connection.setFixedLengthStreamingMode(body.length);
+            connection.setRequestProperty("x-ms-version", STORAGE_VERSION);
+            connection.setRequestProperty("Content-Type", "application/xml");
+            OutputStream out = connection.getOutputStream();
+            out.write(body);
+            out.close();
+            int status = connection.getResponseCode();
+            if (status != HttpURLConnection.HTTP_CREATED) {
+                throw new IOException("Put Block List returned " + status + ": " + readError(connection));
+            }
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    // block IDs must all be the same length within a blob
+    private static String blockId(int index) {
+        return BaseEncoding.base64().encode(String.format("block-%08d", index).getBytes(UTF8));
+    }
+
+    // the SAS token changes from one request for the URL to the next; the blob it points at does not
+    private static String withoutQuery(String url) {
+        int query = url.indexOf('?');
+        return query >= 0 ? url.substring(0, query) : url;
+    }
+
+    // the journal only counts if it was written for this exact file, block size and blob
+    private static Map<Integer, String> readJournal(File journalFile, String header) throws IOException {
+        Map<Integer, String> uploaded = new HashMap<Integer, String>();
+        if (!journalFile.exists()) {
+            return uploaded;
+        }
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(journalFile), UTF8));
+        try {
+            if (!header.equals(reader.readLine())) {
+                return uploaded;
+            }
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split(" ");
+                if (parts.length == 2) {
+                    uploaded.put(Integer.parseInt(parts[0]), parts[1]);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return uploaded;
+    }
+
+    private static Writer openJournal(File journalFile, String header, boolean append) throws IOException {
+        Writer journal = new OutputStreamWriter(new FileOutputStream(journalFile, append), UTF8);
+        if (!append) {
+            journal.write(header + "\n");
+            journal.flush();
+        }
+        return journal;
+    }
+
+    private static String readError(HttpURLConnection connection) {
+        try {
+            InputStream error = connection.getErrorStream();
+            if (error == null) {
+                return connection.getResponseMessage();
+            }
+            BufferedReader reader = new BufferedReader(new InputStreamReader(error, UTF8));
+            try {
+                StringBuilder message = new StringBuilder();
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    message.append(line);
+                }
+                return message.toString();
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            return e.getMessage();
+        }
+    }
+}
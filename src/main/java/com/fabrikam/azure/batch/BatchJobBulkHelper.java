@@ -0,0 +1,353 @@
+package com.fabrikam.azure.batch;
+
+/**
+ * Sample class for working with many Batch jobs at once: creating jobs with their tasks in
+ * parallel, waiting on a whole set of jobs as a single future, and deleting finished jobs with
+ * bounded concurrency. Per-job errors are collected and returned instead of printed.
+ *
+ * Completion is tracked by one poll loop on a shared scheduler. Every poll lists only the
+ * tracked jobs, filtered by id in chunks as large as the filter length allows and selecting
+ * just id and state, and the interval backs off while nothing changes, so waiting on hundreds
+ * of jobs costs one thread and a few calls per interval. A tracked job that is no longer
+ * listed fails its part of the wait.
+ *
+ */
+
+import com.google.common.base.Joiner;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.microsoft.azure.batch.BatchClient;
+import com.microsoft.azure.batch.DetailLevel;
+import com.microsoft.azure.batch.protocol.models.CloudJob;
+import com.microsoft.azure.batch.protocol.models.JobAddParameter;
+import com.microsoft.azure.batch.protocol.models.JobPatchParameter;
+import com.microsoft.azure.batch.protocol.models.JobState;
+import com.microsoft.azure.batch.protocol.models.OnAllTasksComplete;
+import com.microsoft.azure.batch.protocol.models.PoolInformation;
+import com.microsoft.azure.batch.protocol.models.TaskAddParameter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+public class BatchJobBulkHelper {
+
+    private static final long MIN_POLL_MILLIS = 2000;
+    private static final long MAX_POLL_MILLIS = 30000;
+    private static final double POLL_BACKOFF = 1.5;
+    // characters per listJobs filter; percent-encoded, this keeps the request URL well short of service limits
+    private static final int MAX_FILTER_LENGTH = 3000;
+
+    // shared by every helper so tracking jobs never costs more than one scheduler thread
+    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+            daemonThreads("batch-job-poller"));
+
+    private final BatchClient batchClient;
+    private final ExecutorService workers;
+    private final Map<String, TrackedJob> waiting = new HashMap<String, TrackedJob>();
+    private long pollMillis = MIN_POLL_MILLIS;
+    private boolean polling;
+
+    // workerThreads caps how many create and delete calls run at the same time across all bulk calls
+    public BatchJobBulkHelper(BatchOperationsHelper helper, int workerThreads) {
+        this.batchClient = helper.batchClient;
+        this.workers = Executors.newFixedThreadPool(workerThreads, daemonThreads("batch-job-worker"));
+    }
+
+    // create every job in tasksByJob on the pool and add its tasks. Once its tasks are added, each job is set to
+    // terminate when they all complete, so whenJobsComplete can track it. A job with no tasks yet counts as having
+    // all its tasks complete, so it is created with no action and only switched over afterwards. A job whose tasks
+    // or switch-over fail is terminated rather than left active forever. Returns the jobs that failed, with the
+    // reason.
+    public Map<String, Exception> createJobs(final String poolId, Map<String, List<TaskAddParameter>> tasksByJob,
+            int maxConcurrency) throws InterruptedException {
+        Map<String, Runnable> operations = new HashMap<String, Runnable>();
+        for (final Map.Entry<String, List<TaskAddParameter>> job : tasksByJob.entrySet()) {
+            operations.put(job.getKey(), new Runnable() {
+                public void run() {
+                    boolean created = false;
+                    try {
+                        JobAddParameter jobParams = new JobAddParameter()
+                                .withId(job.getKey())
+                                .withPoolInfo(new PoolInformation().withPoolId(poolId))
+                                .withOnAllTasksComplete(OnAllTasksComplete.NO_ACTION);
+                        batchClient.jobOperations().createJob(jobParams);
+                        created = true;
+                        // the service adds a task collection in chunks of 100 per call
+                        batchClient.taskOperations().createTasks(job.getKey(), job.getValue());
+                        batchClient.jobOperations().patchJob(job.getKey(),
+                                new JobPatchParameter().withOnAllTasksComplete(OnAllTasksComplete.TERMINATE_JOB));
+                    } catch (Exception e) {
+                        if (created) {
+                            // with no action on completion the job would stay active and hold its pool forever
+                            try {
+                                batchClient.jobOperations().terminateJob(job.getKey());
+                            } catch (Exception cleanup) {
+                                e.addSuppressed(cleanup);
+                            }
+                        }
+                        throw new BulkOperationException(e);
+                    }
+                }
+            });
+        }
+        return runBounded(operations, maxConcurrency);
+    }
+
+    // delete jobs with at most maxConcurrency deletes in flight. Returns the jobs that failed, with the reason.
+    public Map<String, Exception> deleteJobs(Collection<String> jobIds, int maxConcurrency) throws InterruptedException {
+        Map<String, Runnable> operations = new HashMap<String, Runnable>();
+        for (final String jobId : jobIds) {
+            operations.put(jobId, new Runnable() {
+                public void run() {
+                    try {
+                        batchClient.jobOperations().deleteJob(jobId);
+                    } catch (Exception e) {
+                        throw new BulkOperationException(e);
+                    }
+                }
+            });
+        }
+        return runBounded(operations, maxConcurrency);
+    }
+
+    // a single future that completes when every job has completed, holding the jobs in the order given. It fails
+    // if any of the jobs does not exist or is deleted before it completes.
+    public ListenableFuture<List<CloudJob>> whenJobsComplete(Collection<String> jobIds) {
+        return Futures.allAsList(track(jobIds));
+    }
+
+    // as whenJobsComplete, but fails with a TimeoutException if the jobs have not all completed in time. Jobs that
+    // no other call is waiting on stop being polled once the time is up.
+    public ListenableFuture<List<CloudJob>> whenJobsComplete(Collection<String> jobIds, long timeout, TimeUnit unit) {
+        final List<String> ids = new ArrayList<String>(jobIds);
+        final SettableFuture<List<CloudJob>> result = SettableFuture.create();
+        Futures.addCallback(Futures.allAsList(track(ids)), new FutureCallback<List<CloudJob>>() {
+            public void onSuccess(List<CloudJob> jobs) {
+                result.set(jobs);
+            }
+
+            public void onFailure(Throwable t) {
+                result.setException(t);
+            }
+        }, MoreExecutors.directExecutor());
+
+        final ScheduledFuture<?> deadline = scheduler.schedule(new Runnable() {
+            public void run() {
+                if (result.setException(new TimeoutException("Jobs did not complete in time"))) {
+                    untrack(ids);
+                }
+            }
+        }, timeout, unit);
+        result.addListener(new Runnable() {
+            public void run() {
+                deadline.cancel(false);
+            }
+        }, MoreExecutors.directExecutor());
+        return result;
+    }
+
+    // stop accepting bulk work; jobs already being waited on keep being tracked
+    public void shutdown() {
+        workers.shutdown();
+    }
+
+    private Map<String, Exception> runBounded(Map<String, Runnable> operations, int maxConcurrency)
+            throws InterruptedException {
+        final Semaphore permits = new Semaphore(maxConcurrency);
+        final ConcurrentMap<String, Exception> failures = new ConcurrentHashMap<String, Exception>();
+        for (final Map.Entry<String, Runnable> operation : operations.entrySet()) {
+            permits.acquire();
+            workers.execute(new Runnable() {
+                public void run() {
+                    try {
+                        operation.getValue().run();
+                    } catch (BulkOperationException e) {
+                        failures.put(operation.getKey(), (Exception) e.getCause());
+                    } catch (RuntimeException e) {
+                        failures.put(operation.getKey(), e);
+                    } finally {
+                        permits.release();
+                    }
+                }
+            });
+        }
+        // all permits back means every operation has finished
+        permits.acquire(maxConcurrency);
+        return new HashMap<String, Exception>(failures);
+    }
+
+    private synchronized List<ListenableFuture<CloudJob>> track(Collection<String> jobIds) {
+        List<ListenableFuture<CloudJob>> jobs = new ArrayList<ListenableFuture<CloudJob>>();
+        for (String jobId : jobIds) {
+            TrackedJob tracked = waiting.get(jobId);
+            if (tracked == null) {
+                tracked = new TrackedJob();
+                waiting.put(jobId, tracked);
+            }
+            tracked.waiters++;
+            jobs.add(tracked.future);
+        }
+        startPolling();
+        return jobs;
+    }
+
+    private synchronized void untrack(Collection<String> jobIds) {
+        for (String jobId : jobIds) {
+            TrackedJob tracked = waiting.get(jobId);
+            if (tracked != null && --tracked.waiters == 0) {
+                waiting.remove(jobId);
+                tracked.future.cancel(false);
+            }
+        }
+    }
+
+    private synchronized void startPolling() {
+        pollMillis = MIN_POLL_MILLIS;
+        if (!polling) {
+            polling = true;
+            schedulePoll();
+        }
+    }
+
+    private synchronized void schedulePoll() {
+        if (waiting.isEmpty()) {
+            polling = false;
+            return;
+        }
+        scheduler.schedule(new Runnable() {
+            public void run() {
+                poll();
+            }
+        }, pollMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void poll() {
+        List<String> tracked = new ArrayList<String>();
+        synchronized (this) {
+            for (Map.Entry<String, TrackedJob> entry : new ArrayList<Map.Entry<String, TrackedJob>>(waiting.entrySet())) {
+                // drop jobs nobody is waiting for anymore
+                if (entry.getValue().future.isCancelled()) {
+                    waiting.remove(entry.getKey());
+                } else {
+                    tracked.add(entry.getKey());
+                }
+            }
+        }
+
+        boolean progress = false;
+        for (List<String> ids : filterChunks(tracked)) {
+            Map<String, CloudJob> listed = new HashMap<String, CloudJob>();
+            try {
+                DetailLevel trackedOnly = new DetailLevel.Builder()
+                        .withFilterClause(idFilter(ids))
+                        .withSelectClause("id,state")
+                        .build();
+                for (CloudJob job : batchClient.jobOperations().listJobs(trackedOnly)) {
+                    listed.put(job.id(), job);
+                }
+            } catch (Exception e) {
+                // a failed poll is retried at the next interval
+                System.out.println("Polling job states failed: " + e.getMessage());
+                continue;
+            }
+
+            for (String jobId : ids) {
+                CloudJob job = listed.get(jobId);
+                if (job != null && job.state() != JobState.COMPLETED) {
+                    continue;
+                }
+                TrackedJob done;
+                synchronized (this) {
+                    done = waiting.remove(jobId);
+                }
+                if (done == null) {
+                    continue;
+                }
+                if (job != null) {
+                    done.future.set(job);
+                } else {
+                    done.future.setException(new IllegalStateException("Job " + jobId + " does not exist"));
+                }
+                progress = true;
+            }
+        }
+
+        synchronized (this) {
+            pollMillis = progress ? MIN_POLL_MILLIS : Math.min(MAX_POLL_MILLIS, (long) (pollMillis * POLL_BACKOFF));
+            schedulePoll();
+        }
+    }
+
+    // split the ids into as few groups as fit in one filter each
+    private static List<List<String>> filterChunks(List<String> jobIds) {
+        List<List<String>> chunks = new ArrayList<List<String>>();
+        List<String> chunk = new ArrayList<String>();
+        int length = 0;
+        for (String jobId : jobIds) {
+            int clauseLength = idClause(jobId).length() + " or ".length();
+            if (!chunk.isEmpty() && length + clauseLength > MAX_FILTER_LENGTH) {
+                chunks.add(chunk);
+                chunk = new ArrayList<String>();
+                length = 0;
+            }
+            chunk.add(jobId);
+            length += clauseLength;
+        }
+        if (!chunk.isEmpty()) {
+            chunks.add(chunk);
+        }
+        return chunks;
+    }
+
+    private static String idFilter(List<String> jobIds) {
+        List<String> clauses = new ArrayList<String>();
+        for (String jobId : jobIds) {
+            clauses.add(idClause(jobId));
+        }
+        return Joiner.on(" or ").join(clauses);
+    }
+
+    private static String idClause(String jobId) {
+        return "id eq '" + jobId.replace("'", "''") + "'";
+    }
+
+    private static ThreadFactory daemonThreads(final String name) {
+        return new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    // a job being waited on, shared by every call waiting for it
+    private static final class TrackedJob {
+
+        final SettableFuture<CloudJob> future = SettableFuture.create();
+        int waiters;
+    }
+
+    // carries a checked exception out of a bulk operation to its failure entry
+    private static final class BulkOperationException extends RuntimeException {
+
+        BulkOperationException(Exception cause) {
+            super(cause);
+        }
+    }
+}
@@ -14,6 +14,9 @@ import com.microsoft.azure.management.resources.fluentcore.arm.Region;
 import com.microsoft.azure.management.batch.BatchAccount;
 import com.microsoft.azure.management.batch.BatchAccountKeys;
 import com.microsoft.azure.management.batch.AccountKeyType;
+import com.microsoft.azure.management.batch.Application;
+import com.microsoft.azure.management.batch.ApplicationPackage;
+import java.io.File;
 import java.util.List;
 import java.lang.String;
 
@@ -134,4 +137,35 @@ public class BatchManagementHelper {
 			return null;
 		}
 	}
-}
\ No newline at end of file
+
+	// create a batch account with an application package, then upload the package file and activate it.
+	// Unlike createBatchAccountWithApplicationPackage, failures are thrown to the caller.
+	public BatchAccount createBatchAccountWithUploadedApplicationPackage(String batchAccountName, Region regionName,
+			String resourceGroupName, String appId, String appPackage, String storageAccountName, File packageFile,
+			String packageFormat, int parallelUploads) throws Exception {
+		BatchAccount batchAccountFromPackage = azure.batchAccounts().define(batchAccountName).withRegion(regionName)
+				.withExistingResourceGroup(resourceGroupName).defineNewApplication(appId)
+				.defineNewApplicationPackage(appPackage).withAllowUpdates(true).attach()
+				.withNewStorageAccount(storageAccountName).create();
+		uploadApplicationPackage(batchAccountName, resourceGroupName, appId, appPackage, packageFile, packageFormat,
+				parallelUploads);
+		return batchAccountFromPackage;
+	}
+
+	// upload the bits of an application package that is already defined on the account, then activate it so
+	// pools can use it. Rerunning after a failure resumes the upload from the last finished block.
+	public void uploadApplicationPackage(String batchAccountName, String resourceGroupName, String appId,
+			String appPackage, File packageFile, String packageFormat, int parallelUploads) throws Exception {
+		Application application = azure.batchAccounts().getByGroup(resourceGroupName, batchAccountName)
+				.applications().get(appId);
+		if (application == null) {
+			throw new IllegalArgumentException("Batch account " + batchAccountName + " has no application " + appId);
+		}
+		ApplicationPackage applicationPackage = application.applicationPackages().get(appPackage);
+		if (applicationPackage == null) {
+			throw new IllegalArgumentException("Application " + appId + " has no package " + appPackage);
+		}
+		new ApplicationPackageUploader(parallelUploads).upload(packageFile, applicationPackage.storageUrl());
+		applicationPackage.activate(packageFormat);
+	}
+}
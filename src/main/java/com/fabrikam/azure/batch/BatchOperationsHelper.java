@@ -22,7 +22,7 @@ public class BatchOperationsHelper {
 
     // batchclient expects a https:// URI to the batch account , the name of the batch acccount, 
     // and a key (either primary or secondary) obtained from either the portal or the BatchAccount API
-    BatchOperationsHelper(String accountUri, String batchAcctName, String batchAccountKey) {
+    public BatchOperationsHelper(String accountUri, String batchAcctName, String batchAccountKey) {
         BatchSharedKeyCredentials credentials = new BatchSharedKeyCredentials(accountUri, batchAcctName,
                 batchAccountKey);
         batchClient = BatchClient.open(credentials);
@@ -0,0 +1,301 @@
+package com.fabrikam.azure.batch;
+
+/**
+ * Sample class that places tasks on the pool nodes that already hold their input files.
+ *
+ * The scheduler keeps a local index of which resource files each node of a pool has been sent,
+ * keyed by blob URL without its query string so a file sent with one SAS token is recognised
+ * when a later task names it with another. A new task goes to the node holding the most of its
+ * resource files, passed to the service as the task's affinity. Among equally good nodes it
+ * picks the one with the fewest free task slots left, so the pool fills node by node instead
+ * of spreading shared inputs over all of them. Affinity is a hint, so reconcile() reads back where tasks really ran and which have
+ * finished, and corrects the index and slot counts from that. Tasks that are no longer listed,
+ * because they or their job were deleted, give their slot back too.
+ *
+ * Placement decisions are made under a lock, but the calls to the Batch service are not, so
+ * many tasks can be submitted at once. A node's slot is reserved before its task is submitted
+ * and handed back if the submit fails.
+ *
+ */
+
+import com.microsoft.azure.batch.BatchClient;
+import com.microsoft.azure.batch.DetailLevel;
+import com.microsoft.azure.batch.protocol.models.AffinityInformation;
+import com.microsoft.azure.batch.protocol.models.CloudTask;
+import com.microsoft.azure.batch.protocol.models.ComputeNode;
+import com.microsoft.azure.batch.protocol.models.ComputeNodeState;
+import com.microsoft.azure.batch.protocol.models.ResourceFile;
+import com.microsoft.azure.batch.protocol.models.TaskAddParameter;
+import com.microsoft.azure.batch.protocol.models.TaskState;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+public class DataLocalityScheduler {
+
+    private final BatchClient batchClient;
+    private final String poolId;
+    private final Map<String, NodeState> nodes = new HashMap<String, NodeState>();
+    private final Map<String, Placement> placements = new HashMap<String, Placement>();
+    private int slotsPerNode = 1;
+
+    public DataLocalityScheduler(BatchOperationsHelper helper, String poolId) {
+        this.batchClient = helper.batchClient;
+        this.poolId = poolId;
+    }
+
+    // load the pool's nodes and slot count. Nodes that left the pool are dropped along with what they held;
+    // nodes that stay keep their file index.
+    public void refreshNodes() throws Exception {
+        Integer maxTasksPerNode = batchClient.poolOperations().getPool(poolId).maxTasksPerNode();
+        List<ComputeNode> listed = batchClient.computeNodeOperations().listComputeNodes(poolId);
+
+        synchronized (this) {
+            slotsPerNode = maxTasksPerNode != null ? maxTasksPerNode : 1;
+            Set<String> present = new HashSet<String>();
+            for (ComputeNode node : listed) {
+                if (node.state() != ComputeNodeState.IDLE && node.state() != ComputeNodeState.RUNNING) {
+                    continue;
+                }
+                present.add(node.id());
+                NodeState state = nodes.get(node.id());
+                if (state == null) {
+                    nodes.put(node.id(), new NodeState(node.id(), node.affinityId()));
+                } else {
+                    state.affinityId = node.affinityId();
+                }
+            }
+            nodes.keySet().retainAll(present);
+        }
+    }
+
+    // add a task to a job, placed on the node that already holds most of its resource files. Returns the node
+    // the task was steered to, or null if the pool had no usable nodes and the service will place it.
+    public String addTask(String jobId, String taskId, String commandLine,
+            List<ResourceFile> resourceFiles) throws Exception {
+        boolean noNodes;
+        synchronized (this) {
+            noNodes = nodes.isEmpty();
+        }
+        if (noNodes) {
+            refreshNodes();
+        }
+
+        // pick the node and reserve its slot before submitting, so tasks placed meanwhile see it taken
+        String key = jobId + "/" + taskId;
+        Placement placement = null;
+        String affinityId = null;
+        synchronized (this) {
+            NodeState target = choose(resourceFiles);
+            if (target != null) {
+                placement = new Placement(target.nodeId, sources(resourceFiles));
+                placement.filesAlreadyPresent.addAll(placement.files);
+                placement.filesAlreadyPresent.retainAll(target.files);
+                placements.put(key, placement);
+                target.files.addAll(placement.files);
+                target.activeTasks++;
+                affinityId = target.affinityId;
+            }
+        }
+
+        TaskAddParameter taskParams = new TaskAddParameter().withId(taskId)
+                .withCommandLine(commandLine)
+                .withResourceFiles(resourceFiles);
+        if (affinityId != null) {
+            taskParams.withAffinityInfo(new AffinityInformation().withAffinityId(affinityId));
+        }
+        try {
+            batchClient.taskOperations().createTask(jobId, taskParams);
+        } catch (Exception e) {
+            if (placement != null) {
+                release(key, placement);
+            }
+            throw e;
+        }
+        if (placement == null) {
+            return null;
+        }
+        synchronized (this) {
+            placement.submittedNanos = System.nanoTime();
+            return placement.nodeId;
+        }
+    }
+
+    // read back the tasks of a job: move the index to the node each task really ran on, and free the slots of
+    // tasks that finished or are no longer listed
+    public void reconcile(String jobId) throws Exception {
+        DetailLevel placementOnly = new DetailLevel.Builder().withSelectClause("id,state,nodeInfo").build();
+        long listedNanos = System.nanoTime();
+        List<CloudTask> tasks = batchClient.taskOperations().listTasks(jobId, placementOnly);
+
+        synchronized (this) {
+            Set<String> listed = new HashSet<String>();
+            for (CloudTask task : tasks) {
+                String key = jobId + "/" + task.id();
+                listed.add(key);
+                Placement placement = placements.get(key);
+                if (placement == null) {
+                    continue;
+                }
+
+                String actualNode = task.nodeInfo() != null ? task.nodeInfo().nodeId() : null;
+                if (actualNode != null && !actualNode.equals(placement.nodeId)) {
+                    // the service ignored the affinity hint; the files went where the task went
+                    NodeState planned = nodes.get(placement.nodeId);
+                    if (planned != null) {
+                        planned.activeTasks--;
+                    }
+                    NodeState actual = nodes.get(actualNode);
+                    if (actual != null) {
+                        actual.files.addAll(placement.files);
+                        actual.activeTasks++;
+                    }
+                    placement.nodeId = actualNode;
+                }
+
+                if (task.state() == TaskState.COMPLETED) {
+                    NodeState node = nodes.get(placement.nodeId);
+                    if (node != null) {
+                        node.activeTasks--;
+                    }
+                    placements.remove(key);
+                }
+            }
+
+            // tasks deleted since they were placed hold on to their slot unless freed here. A task still being
+            // submitted, or submitted after the listing began, may be missing from it too, so those are left alone.
+            for (Iterator<Map.Entry<String, Placement>> it = placements.entrySet().iterator(); it.hasNext();) {
+                Map.Entry<String, Placement> entry = it.next();
+                Placement placement = entry.getValue();
+                if (entry.getKey().startsWith(jobId + "/") && !listed.contains(entry.getKey())
+                        && placement.submittedNanos != 0 && placement.submittedNanos - listedNanos < 0) {
+                    NodeState node = nodes.get(placement.nodeId);
+                    if (node != null) {
+                        node.activeTasks--;
+                    }
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    // nodes that already hold the resource file, by blob source with or without its SAS token
+    public synchronized List<String> nodesHolding(String blobSource) {
+        String blob = withoutQuery(blobSource);
+        List<String> holders = new ArrayList<String>();
+        for (NodeState node : nodes.values()) {
+            if (node.files.contains(blob)) {
+                holders.add(node.nodeId);
+            }
+        }
+        return holders;
+    }
+
+    // undo the reservation of a task whose submit failed. Its files only leave the node's index if no other
+    // task placed there brought them too.
+    private synchronized void release(String key, Placement placement) {
+        placements.remove(key);
+        NodeState node = nodes.get(placement.nodeId);
+        if (node == null) {
+            return;
+        }
+        node.activeTasks--;
+        for (String file : placement.files) {
+            if (!placement.filesAlreadyPresent.contains(file) && !placedOn(node.nodeId, file)) {
+                node.files.remove(file);
+            }
+        }
+    }
+
+    private boolean placedOn(String nodeId, String file) {
+        for (Placement other : placements.values()) {
+            if (other.nodeId.equals(nodeId) && other.files.contains(file)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // most resource files already present wins; ties go to the node with the fewest free slots, so tasks
+    // pack onto nodes rather than spreading out. Full nodes are only used when every node is full.
+    private NodeState choose(List<ResourceFile> resourceFiles) {
+        Set<String> wanted = sources(resourceFiles);
+        NodeState best = null;
+        int bestHits = -1;
+        int bestFree = Integer.MAX_VALUE;
+        boolean bestHasRoom = false;
+        for (NodeState node : nodes.values()) {
+            int free = slotsPerNode - node.activeTasks;
+            boolean hasRoom = free > 0;
+            int hits = 0;
+            for (String file : wanted) {
+                if (node.files.contains(file)) {
+                    hits++;
+                }
+            }
+            boolean better;
+            if (hasRoom != bestHasRoom) {
+                better = hasRoom;
+            } else if (hits != bestHits) {
+                better = hits > bestHits;
+            } else {
+                better = hasRoom ? free < bestFree : free > bestFree;
+            }
+            if (best == null || better) {
+                best = node;
+                bestHits = hits;
+                bestFree = free;
+                bestHasRoom = hasRoom;
+            }
+        }
+        return best;
+    }
+
+    private static Set<String> sources(List<ResourceFile> resourceFiles) {
+        Set<String> sources = new HashSet<String>();
+        if (resourceFiles != null) {
+            for (ResourceFile file : resourceFiles) {
+                sources.add(withoutQuery(file.blobSource()));
+            }
+        }
+        return sources;
+    }
+
+    // SAS tokens are reissued and expire; the blob they grant access to is what identifies the file
+    private static String withoutQuery(String blobSource) {
+        int query = blobSource.indexOf('?');
+        return query >= 0 ? blobSource.substring(0, query) : blobSource;
+    }
+
+    private static final class NodeState {
+
+        final String nodeId;
+        String affinityId;
+        final Set<String> files = new HashSet<String>();
+        int activeTasks;
+
+        NodeState(String nodeId, String affinityId) {
+            this.nodeId = nodeId;
+            this.affinityId = affinityId;
+        }
+    }
+
+    private static final class Placement {
+
+        String nodeId;
+        final Set<String> files;
+        // files the node held before this task was placed there, kept if the submit fails
+        final Set<String> filesAlreadyPresent = new HashSet<String>();
+        // when the service accepted the task, or 0 while it is still being submitted
+        long submittedNanos;
+
+        Placement(String nodeId, Set<String> files) {
+            this.nodeId = nodeId;
+            this.files = files;
+        }
+    }
+}
@@ -0,0 +1,417 @@
+package com.fabrikam.azure.keyvault;
+
+import com.microsoft.azure.management.Azure;
+import com.microsoft.azure.management.keyvault.AccessPolicy;
+import com.microsoft.azure.management.keyvault.KeyPermissions;
+import com.microsoft.azure.management.keyvault.SecretPermissions;
+import com.microsoft.azure.management.keyvault.Vault;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Queues access policy changes and writes them to each vault in a single update.
+ *
+ * Changes for the same principal are merged locally. A flush reads the vault's current policy
+ * set and drops the changes it already satisfies before anything is sent. A grant for an
+ * object that has no access policy on the vault is dropped and reported without holding
+ * back the others. A flush that fails, or whose result does not contain the queued
+ * permissions because another writer replaced the policy set, re-reads the vault and tries
+ * again; once out of attempts its changes are queued again for a later flush.
+ *
+ * Access policies are keyed by object ID, but service principals are granted by client ID.
+ * The object ID of a service principal is learned from the write that adds its policy, so
+ * later flushes recognise the policy instead of defining a duplicate.
+ */
+
+public class AccessPolicyBatcher {
+
+    public static final int DEFAULT_MAX_ATTEMPTS = 5;
+    private static final long BASE_RETRY_DELAY_MILLIS = 500;
+
+    private final Azure azure;
+    private final int maxAttempts;
+    private final ConcurrentMap<String, PendingVault> pending = new ConcurrentHashMap<String, PendingVault>();
+    private final ConcurrentMap<String, String> objectIdsByClientId = new ConcurrentHashMap<String, String>();
+
+    public AccessPolicyBatcher(Azure azure) {
+        this(azure, DEFAULT_MAX_ATTEMPTS);
+    }
+
+    public AccessPolicyBatcher(Azure azure, int maxAttempts) {
+        this.azure = azure;
+        this.maxAttempts = maxAttempts;
+    }
+
+    /**
+	* Queues the same grant KeyVaultManager.authorizeApp makes: all key permissions plus secret get and list
+	*
+	* @param vault Vault item to give authorization on
+	* @param propsFilePath String containing path to file that contains properties for creating application token
+	*/
+
+    public void authorizeApp(Vault vault, String propsFilePath) throws Exception {
+        Grant grant = new Grant();
+        grant.allKeys = true;
+        grant.secrets.add(SecretPermissions.GET);
+        grant.secrets.add(SecretPermissions.LIST);
+        pendingFor(vault).merge(KeyVaultManager.clientIdFromFile(propsFilePath), grant, true);
+    }
+
+    /**
+	* Queues permissions for a service principal, defining its access policy if the vault has none yet
+	*
+	* @param vault Vault item to give authorization on
+	* @param clientId Client ID of the service principal
+	* @param keyPermissions Key permissions to allow
+	* @param secretPermissions Secret permissions to allow
+	*/
+
+    public void grantServicePrincipal(Vault vault, String clientId, Collection<KeyPermissions> keyPermissions,
+            Collection<SecretPermissions> secretPermissions) {
+        pendingFor(vault).merge(clientId, new Grant(keyPermissions, secretPermissions), true);
+    }
+
+    /**
+	* Queues additional permissions for a principal that already has an access policy on the vault
+	*
+	* @param vault Vault item the access policy belongs to
+	* @param objectId Object ID of the principal
+	* @param keyPermissions Key permissions to allow
+	* @param secretPermissions Secret permissions to allow
+	*/
+
+    public void grantObject(Vault vault, String objectId, Collection<KeyPermissions> keyPermissions,
+            Collection<SecretPermissions> secretPermissions) {
+        pendingFor(vault).merge(objectId, new Grant(keyPermissions, secretPermissions), false);
+    }
+
+    /**
+	* Writes every queued change for one vault in a single update
+	*
+	* @param vault Vault item to flush changes for
+	*
+    * @return The Vault item with the applied access policies, each dropped object grant under its object ID,
+    *         and the vault's resource ID with the error if the update itself failed
+	*/
+
+    public BulkResult<String, Vault> flush(Vault vault) throws Exception {
+        BulkResult<String, Vault> result = new BulkResult<String, Vault>();
+        if (!pending.containsKey(vault.id())) {
+            result.addSuccess(vault);
+            return result;
+        }
+        flush(vault.id(), result);
+        return result;
+    }
+
+    /**
+	* Writes the queued changes of every vault, one update per vault. A vault that fails does not stop the rest.
+	*
+	* @return Vault items with the applied access policies, each dropped object grant under its object ID,
+	*         and the resource ID and error of every vault whose update failed
+	*/
+
+    public BulkResult<String, Vault> flushAll() throws Exception {
+        BulkResult<String, Vault> result = new BulkResult<String, Vault>();
+        for (String vaultId : new ArrayList<String>(pending.keySet())) {
+            flush(vaultId, result);
+        }
+        return result;
+    }
+
+    private void flush(String vaultId, BulkResult<String, Vault> result) throws Exception {
+        PendingVault queued = pending.get(vaultId);
+        Map<String, Grant> servicePrincipals;
+        Map<String, Grant> objects;
+        synchronized (queued) {
+            servicePrincipals = queued.servicePrincipals;
+            objects = queued.objects;
+            queued.servicePrincipals = new LinkedHashMap<String, Grant>();
+            queued.objects = new LinkedHashMap<String, Grant>();
+        }
+
+        // the Vault the grants were queued against may predate policies added since; merge against a fresh read
+        Vault current;
+        try {
+            current = azure.vaults().getById(vaultId);
+        } catch (Exception e) {
+            requeue(vaultId, servicePrincipals, objects);
+            result.addFailure(vaultId, e);
+            return;
+        }
+        Exception lastError = null;
+        for (int attempt = 1; attempt <= maxAttempts; attempt++) {
+            // a grant on an object with no policy cannot be written; drop it and send the rest
+            for (String missing : findMissingPolicies(current, objects)) {
+                objects.remove(missing);
+                result.addFailure(missing, new IllegalStateException("Vault " + current.name()
+                        + " has no access policy for object " + missing));
+            }
+
+            try {
+                Vault.Update update = null;
+                for (Map.Entry<String, Grant> entry : objects.entrySet()) {
+                    AccessPolicy policy = findPolicy(current, entry.getKey());
+                    if (!entry.getValue().isSatisfiedBy(policy)) {
+                        update = entry.getValue().applyTo(update != null ? update : current.update(), policy);
+                    }
+                }
+                List<String> defined = new ArrayList<String>();
+                for (Map.Entry<String, Grant> entry : servicePrincipals.entrySet()) {
+                    AccessPolicy policy = findServicePrincipalPolicy(current, entry.getKey());
+                    if (policy == null) {
+                        update = entry.getValue().defineOn(update != null ? update : current.update(), entry.getKey());
+                        defined.add(entry.getKey());
+                    } else if (!entry.getValue().isSatisfiedBy(policy)) {
+                        update = entry.getValue().applyTo(update != null ? update : current.update(), policy);
+                    }
+                }
+
+                if (update != null) {
+                    Set<String> before = objectIdsOf(current);
+                    current = update.apply();
+                    for (String clientId : learnObjectIds(before, current, defined)) {
+                        // written, but its policy cannot be told apart; trust the write rather than define it again
+                        servicePrincipals.remove(clientId);
+                    }
+                }
+                if (satisfied(current, objects) && servicePrincipalsSatisfied(current, servicePrincipals)) {
+                    result.addSuccess(current);
+                    return;
+                }
+                lastError = new IllegalStateException("Access policies on vault " + current.name()
+                        + " were replaced by a concurrent update");
+            } catch (Exception e) {
+                lastError = e;
+            }
+
+            if (attempt < maxAttempts) {
+                // another writer got in first; merge again against its policy set
+                Thread.sleep(BASE_RETRY_DELAY_MILLIS << (attempt - 1));
+                try {
+                    current = azure.vaults().getById(vaultId);
+                } catch (Exception e) {
+                    lastError = e;
+                    break;
+                }
+            }
+        }
+
+        requeue(vaultId, servicePrincipals, objects);
+        result.addFailure(vaultId, lastError);
+    }
+
+    private PendingVault pendingFor(Vault vault) {
+        return pendingFor(vault.id());
+    }
+
+    private PendingVault pendingFor(String vaultId) {
+        PendingVault created = new PendingVault();
+        PendingVault existing = pending.putIfAbsent(vaultId, created);
+        return existing != null ? existing : created;
+    }
+
+    // The write replaces the whole policy set, so the policies it added are exactly the ones not there before,
+    // in the order they were defined. Returns the client IDs whose object ID could not be learned.
+    private List<String> learnObjectIds(Set<String> before, Vault written, List<String> definedClientIds) {
+        List<String> added = new ArrayList<String>();
+        for (AccessPolicy accessPolicy : written.accessPolicies()) {
+            String objectId = String.valueOf(accessPolicy.objectId()).toLowerCase();
+            if (!before.contains(objectId)) {
+                added.add(objectId);
+            }
+        }
+        if (added.size() != definedClientIds.size()) {
+            return definedClientIds;
+        }
+        for (int i = 0; i < added.size(); i++) {
+            objectIdsByClientId.put(definedClientIds.get(i).toLowerCase(), added.get(i));
+        }
+        return new ArrayList<String>();
+    }
+
+    private AccessPolicy findServicePrincipalPolicy(Vault vault, String clientId) {
+        String objectId = objectIdsByClientId.get(clientId.toLowerCase());
+        if (objectId != null) {
+            return findPolicy(vault, objectId);
+        }
+        for (AccessPolicy accessPolicy : vault.accessPolicies()) {
+            if (String.valueOf(accessPolicy.applicationId()).equalsIgnoreCase(clientId)) {
+                return accessPolicy;
+            }
+        }
+        return null;
+    }
+
+    private boolean servicePrincipalsSatisfied(Vault vault, Map<String, Grant> servicePrincipals) {
+        for (Map.Entry<String, Grant> entry : servicePrincipals.entrySet()) {
+            AccessPolicy policy = findServicePrincipalPolicy(vault, entry.getKey());
+            if (policy == null || !entry.getValue().isSatisfiedBy(policy)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static Set<String> objectIdsOf(Vault vault) {
+        Set<String> objectIds = new LinkedHashSet<String>();
+        for (AccessPolicy accessPolicy : vault.accessPolicies()) {
+            objectIds.add(String.valueOf(accessPolicy.objectId()).toLowerCase());
+        }
+        return objectIds;
+    }
+
+    private void requeue(String vaultId, Map<String, Grant> servicePrincipals, Map<String, Grant> objects) {
+        PendingVault queued = pendingFor(vaultId);
+        for (Map.Entry<String, Grant> entry : servicePrincipals.entrySet()) {
+            queued.merge(entry.getKey(), entry.getValue(), true);
+        }
+        for (Map.Entry<String, Grant> entry : objects.entrySet()) {
+            queued.merge(entry.getKey(), entry.getValue(), false);
+        }
+    }
+
+    private static boolean satisfied(Vault vault, Map<String, Grant> objects) {
+        for (Map.Entry<String, Grant> entry : objects.entrySet()) {
+            AccessPolicy policy = findPolicy(vault, entry.getKey());
+            if (policy == null || !entry.getValue().isSatisfiedBy(policy)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static List<String> findMissingPolicies(Vault vault, Map<String, Grant> objects) {
+        List<String> missing = new ArrayList<String>();
+        for (String objectId : objects.keySet()) {
+            if (findPolicy(vault, objectId) == null) {
+                missing.add(objectId);
+            }
+        }
+        return missing;
+    }
+
+    private static AccessPolicy findPolicy(Vault vault, String objectId) {
+        for (AccessPolicy accessPolicy : vault.accessPolicies()) {
+            if (String.valueOf(accessPolicy.objectId()).equalsIgnoreCase(objectId)) {
+                return accessPolicy;
+            }
+        }
+        return null;
+    }
+
+    private static boolean contains(Collection<?> granted, Object permission) {
+        for (Object existing : granted) {
+            String name = String.valueOf(existing);
+            if (name.equalsIgnoreCase("all") || name.equalsIgnoreCase(String.valueOf(permission))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static final class PendingVault {
+
+        Map<String, Grant> servicePrincipals = new LinkedHashMap<String, Grant>();
+        Map<String, Grant> objects = new LinkedHashMap<String, Grant>();
+
+        synchronized void merge(String principal, Grant grant, boolean servicePrincipal) {
+            Map<String, Grant> target = servicePrincipal ? servicePrincipals : objects;
+            Grant existing = target.get(principal);
+            if (existing == null) {
+                target.put(principal, grant.copy());
+            } else {
+                existing.add(grant);
+            }
+        }
+    }
+
+    private static final class Grant {
+
+        boolean allKeys;
+        final Set<KeyPermissions> keys = new LinkedHashSet<KeyPermissions>();
+        final Set<SecretPermissions> secrets = new LinkedHashSet<SecretPermissions>();
+
+        Grant() {
+        }
+
+        Grant(Collection<KeyPermissions> keyPermissions, Collection<SecretPermissions> secretPermissions) {
+            keys.addAll(keyPermissions);
+            secrets.addAll(secretPermissions);
+        }
+
+        Grant copy() {
+            Grant copy = new Grant(keys, secrets);
+            copy.allKeys = allKeys;
+            return copy;
+        }
+
+        void add(Grant other) {
+            allKeys |= other.allKeys;
+            keys.addAll(other.keys);
+            secrets.addAll(other.secrets);
+        }
+
+        boolean isSatisfiedBy(AccessPolicy policy) {
+            Collection<?> grantedKeys = policy.permissions().keys();
+            Collection<?> grantedSecrets = policy.permissions().secrets();
+            if (allKeys && !contains(grantedKeys, "all")) {
+                return false;
+            }
+            for (KeyPermissions key : keys) {
+                if (!contains(grantedKeys, key)) {
+                    return false;
+                }
+            }
+            for (SecretPermissions secret : secrets) {
+                if (!contains(grantedSecrets, secret)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        Vault.Update applyTo(Vault.Update update, AccessPolicy policy) {
+            if (allKeys) {
+                return update.updateAccessPolicy(policy.objectId())
+                            .allowKeyAllPermissions()
+                            .allowSecretPermissions(secretArray())
+                            .parent();
+            }
+            return update.updateAccessPolicy(policy.objectId())
+                        .allowKeyPermissions(keyArray())
+                        .allowSecretPermissions(secretArray())
+                        .parent();
+        }
+
+        Vault.Update defineOn(Vault.Update update, String clientId) {
+            if (allKeys) {
+                return update.defineAccessPolicy()
+                            .forServicePrincipal(clientId)
+                            .allowKeyAllPermissions()
+                            .allowSecretPermissions(secretArray())
+                            .attach();
+            }
+            return update.defineAccessPolicy()
+                        .forServicePrincipal(clientId)
+                        .allowKeyPermissions(keyArray())
+                        .allowSecretPermissions(secretArray())
+                        .attach();
+        }
+
+        private KeyPermissions[] keyArray() {
+            return keys.toArray(new KeyPermissions[keys.size()]);
+        }
+
+        private SecretPermissions[] secretArray() {
+            return secrets.toArray(new SecretPermissions[secrets.size()]);
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package com.fabrikam.azure.keyvault;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Outcome of a bulk operation run over many items.
+ *
+ * One failed item does not hide the others: the results of every item that succeeded are kept
+ * alongside the reason each failed item failed, so callers can see exactly which resources exist.
+ */
+
+public class BulkResult<S, T> {
+
+    private final List<T> succeeded = new ArrayList<T>();
+    private final Map<S, Exception> failed = new LinkedHashMap<S, Exception>();
+
+    synchronized void addSuccess(T result) {
+        succeeded.add(result);
+    }
+
+    synchronized void addFailure(S item, Exception error) {
+        failed.put(item, error);
+    }
+
+    /**
+	* Returns the results of the items that succeeded, in completion order
+	*/
+
+    public synchronized List<T> succeeded() {
+        return Collections.unmodifiableList(new ArrayList<T>(succeeded));
+    }
+
+    /**
+	* Returns the items that failed, with the reason each one failed
+	*/
+
+    public synchronized Map<S, Exception> failed() {
+        return Collections.unmodifiableMap(new LinkedHashMap<S, Exception>(failed));
+    }
+
+    public synchronized boolean hasFailures() {
+        return !failed.isEmpty();
+    }
+}
@@ -0,0 +1,157 @@
+package com.fabrikam.azure.keyvault;
+
+import com.microsoft.azure.credentials.ApplicationTokenCredentials;
+import com.microsoft.azure.keyvault.KeyVaultClient;
+import com.microsoft.azure.management.Azure;
+import java.io.File;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import okhttp3.logging.HttpLoggingInterceptor;
+
+/**
+ * Builds the management and data plane clients on first use instead of up front.
+ *
+ * warmUp() starts either or both planes on background threads so their authentication and
+ * class loading overlap with each other and with the caller. A plane that is never warmed up
+ * or asked for is never built.
+ *
+ * Building the data plane client makes no network call; the AAD token is normally fetched on
+ * the first request, when the vault answers with a challenge. The data plane task fetches it
+ * up front instead, for the tenant named in the properties file, so the first request finds it
+ * cached. If the vault's challenge names another authority the token is fetched then as usual.
+ */
+
+public class ClientBootstrap {
+
+    private static final String AUTHORITY = "https://login.windows.net/";
+    private static final String KEY_VAULT_RESOURCE = "https://vault.azure.net";
+
+    private final StartupTimer timer;
+    private final FutureTask<Azure> azure;
+    private final FutureTask<KeyVaultClient> keyVaultClient;
+    private final ExecutorService warmUpExecutor = Executors.newFixedThreadPool(2, new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "client-warmup");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final Object managerLock = new Object();
+    private final Object handlerLock = new Object();
+    private KeyVaultManager keyVaultManager;
+    private KeyVaultHandler keyVaultHandler;
+
+    /**
+	* @param propsFilePath String containing path to the management plane auth properties file
+	* @param appId Application ID used to authenticate with the data plane
+	* @param secretKey Application secret used to authenticate with the data plane
+	* @param timer StartupTimer that each plane records its startup phase in
+	*/
+
+    public ClientBootstrap(final String propsFilePath, final String appId, final String secretKey, final StartupTimer timer) {
+        this.timer = timer;
+        this.azure = new FutureTask<Azure>(new Callable<Azure>() {
+            public Azure call() throws Exception {
+                long began = timer.begin();
+                Azure azure = Azure.configure()
+                        .withLogLevel(HttpLoggingInterceptor.Level.NONE)
+                        .authenticate(new File(propsFilePath))
+                        .withDefaultSubscription();
+                timer.end("management plane auth", began);
+                return azure;
+            }
+        });
+        this.keyVaultClient = new FutureTask<KeyVaultClient>(new Callable<KeyVaultClient>() {
+            public KeyVaultClient call() throws Exception {
+                long began = timer.begin();
+                ClientSecretKeyVaultCredential kvCred = new ClientSecretKeyVaultCredential(appId, secretKey);
+                KeyVaultClient vc = new KeyVaultClient(kvCred);
+                timer.end("data plane client", began);
+
+                began = timer.begin();
+                try {
+                    String tenant = ApplicationTokenCredentials.fromFile(new File(propsFilePath)).getDomain();
+                    kvCred.acquireToken(AUTHORITY + tenant, KEY_VAULT_RESOURCE);
+                    timer.end("data plane auth", began);
+                } catch (Exception e) {
+                    // the client still works; the first request fetches the token instead
+                    System.out.println("Could not fetch the data plane token ahead of time: " + e.getMessage());
+                }
+                return vc;
+            }
+        });
+    }
+
+    /**
+	* Starts building the requested planes in the background and returns immediately
+	*
+	* @param managementPlane true to authenticate the management plane
+	* @param dataPlane true to build the Key Vault data plane client and fetch its token
+	*/
+
+    public void warmUp(boolean managementPlane, boolean dataPlane) {
+        if (managementPlane) {
+            warmUpExecutor.execute(azure);
+        }
+        if (dataPlane) {
+            warmUpExecutor.execute(keyVaultClient);
+        }
+    }
+
+    /**
+	* Returns the authenticated management plane, building it on this thread if no warm-up has started it
+	*/
+
+    public Azure azure() throws Exception {
+        return await(azure);
+    }
+
+    /**
+	* Returns the data plane client, building it on this thread if no warm-up has started it
+	*/
+
+    public KeyVaultClient keyVaultClient() throws Exception {
+        return await(keyVaultClient);
+    }
+
+    public KeyVaultManager keyVaultManager() throws Exception {
+        synchronized (managerLock) {
+            if (keyVaultManager == null) {
+                keyVaultManager = new KeyVaultManager(azure());
+            }
+            return keyVaultManager;
+        }
+    }
+
+    public KeyVaultHandler keyVaultHandler() throws Exception {
+        synchronized (handlerLock) {
+            if (keyVaultHandler == null) {
+                keyVaultHandler = new KeyVaultHandler(keyVaultClient());
+            }
+            return keyVaultHandler;
+        }
+    }
+
+    public StartupTimer timer() {
+        return timer;
+    }
+
+    // FutureTask.run() is a no-op once the task has been started elsewhere, so whichever
+    // thread gets there first builds the client and everyone else waits on the result
+    private static <T> T await(FutureTask<T> task) throws Exception {
+        task.run();
+        try {
+            return task.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw e;
+        }
+    }
+}
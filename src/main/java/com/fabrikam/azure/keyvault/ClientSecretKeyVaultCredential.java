@@ -1,7 +1,10 @@
 package com.fabrikam.azure.keyvault;
 
 import java.net.MalformedURLException;
+import java.util.Date;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -19,6 +22,10 @@ public class ClientSecretKeyVaultCredential extends KeyVaultCredentials
 {
 	private String applicationId ;
 	private String applicationSecret;
+
+	// tokens are reused until shortly before they expire, keyed by authority and resource
+	private static final long EXPIRY_MARGIN_MILLIS = 5 * 60 * 1000;
+	private final ConcurrentMap<String, AuthenticationResult> tokens = new ConcurrentHashMap<String, AuthenticationResult>();
 	
 	public ClientSecretKeyVaultCredential(String applicationId, String applicationSecret)
 	{
@@ -44,10 +51,15 @@ public class ClientSecretKeyVaultCredential extends KeyVaultCredentials
 
 	@Override
 	public String doAuthenticate(String authorization, String resource, String scope) {
-		AuthenticationResult res = null;
+		String tokenKey = tokenKey(authorization, resource);
+		AuthenticationResult res = tokens.get(tokenKey);
+		if (res != null && !expiresSoon(res)) {
+			return res.getAccessToken();
+		}
 		
 		try {
 			res = GetAccessToken(authorization, resource, this.applicationId, this.applicationSecret);
+			tokens.put(tokenKey, res);
 		} catch (InterruptedException e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
@@ -58,6 +70,29 @@ public class ClientSecretKeyVaultCredential extends KeyVaultCredentials
 
 		return res.getAccessToken();
 	}
+
+	/**
+	 * Fetches a token ahead of the first request so that request does not wait on AAD
+	 *
+	 * @param authorization Authority the vault's challenge names, e.g. https://login.windows.net/{tenant}
+	 * @param resource Resource the token is for, e.g. https://vault.azure.net
+	 */
+	public void acquireToken(String authorization, String resource) throws InterruptedException, ExecutionException {
+		tokens.put(tokenKey(authorization, resource), GetAccessToken(authorization, resource, this.applicationId, this.applicationSecret));
+	}
+
+	private static String tokenKey(String authorization, String resource) {
+		return trimSlash(authorization).toLowerCase() + " " + trimSlash(resource).toLowerCase();
+	}
+
+	private static String trimSlash(String value) {
+		return value.endsWith("/") ? value.substring(0, value.length() - 1) : value;
+	}
+
+	private static boolean expiresSoon(AuthenticationResult res) {
+		Date expiresOn = res.getExpiresOnDate();
+		return expiresOn == null || expiresOn.getTime() - System.currentTimeMillis() < EXPIRY_MARGIN_MILLIS;
+	}
 	
 	private AuthenticationResult GetAccessToken(String authorization, String resource, String clientID, String clientKey)
 			throws InterruptedException, ExecutionException {
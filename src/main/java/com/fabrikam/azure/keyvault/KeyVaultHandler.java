@@ -15,6 +15,7 @@ import com.microsoft.azure.PagedList;
 import com.microsoft.azure.keyvault.models.SecretItem;
 import com.microsoft.azure.keyvault.models.KeyItem;
 import java.io.*;
+import java.util.Arrays;
 import com.microsoft.azure.keyvault.models.KeyBundle;
 import com.microsoft.azure.keyvault.models.SecretBundle;
 import com.microsoft.azure.keyvault.webkey.JsonWebKeyEncryptionAlgorithm;
@@ -57,6 +58,19 @@ public class KeyVaultHandler {
         SetSecretRequest ssr = new SetSecretRequest.Builder(vaultURL, secretName, secretValue).build();
 		vc.setSecret(ssr);
 
+    }
+
+	/**
+	* Creates a secret from an off-heap value. SetSecretRequest only takes a String, so a
+	* short-lived heap copy is made for the request itself.
+	*
+	* @param vaultURL URL of the vault in Azure that the secret will be created in
+	* @param secretName Name that will be given to the secret once created
+	* @param secretValue Value of the secret that will be created, left open for the caller to close
+	*/
+
+    public void createSecret(String vaultURL, String secretName, SecretValue secretValue) throws IOException {
+        createSecret(vaultURL, secretName, secretValue.toUnclearableString());
     }
 
 	/**
@@ -113,10 +127,13 @@ public class KeyVaultHandler {
 	*
 	* @param vaultURL URL of the vault in Azure that the key exists in
 	* @param keyName Name of the key that is to be retrieved
+	*
+	* @return KeyBundle item for the key
 	*/
 
-	public void showKey(String vaultURL, String keyName) throws IOException {
+	public KeyBundle showKey(String vaultURL, String keyName) throws IOException {
 		KeyBundle keyBundle = vc.getKey(vaultURL, keyName);
+		return keyBundle;
 	}
 
 	/**
@@ -124,10 +141,29 @@ public class KeyVaultHandler {
 	*
 	* @param vaultURL URL of the vault in Azure that the secret exists in
 	* @param keyName Name of the secret that is to be retrieved
+	*
+	* @return SecretBundle item for the secret
 	*/
 
-	public void showSecret(String vaultURL, String secretName) throws IOException {
+	public SecretBundle showSecret(String vaultURL, String secretName) throws IOException {
 		SecretBundle secretBundle = vc.getSecret(vaultURL, secretName);
+		return secretBundle;
+	}
+
+	/**
+	* Retrieves a secret's value into off-heap memory. The SDK still parses the response into a
+	* SecretBundle whose value is a heap String, and the response buffers it read are on the heap
+	* too; none of these can be cleared, so they stay in memory until the garbage collector reclaims
+	* them. The returned SecretValue is the only copy this class keeps, and closing it zeroes it.
+	*
+	* @param vaultURL URL of the vault in Azure that the secret exists in
+	* @param secretName Name of the secret that is to be retrieved
+	*
+	* @return SecretValue for the caller to close
+	*/
+
+	public SecretValue getSecretValue(String vaultURL, String secretName) throws IOException {
+		return SecretValue.fromString(vc.getSecret(vaultURL, secretName).value());
 	}
 
 	/**
@@ -167,6 +203,25 @@ public class KeyVaultHandler {
 		return result;
 	}
 
+	/**
+	* Encrypts an off-heap secret value using the specified key
+	*
+	* @param vaultURL URL of the vault in Azure that the key belong to
+	* @param keyName Name of the key to use for the encryption
+	* @param valueToEncrypt SecretValue to encrypt, as its UTF-8 bytes
+	*/
+
+	public KeyOperationResult encryptData(String vaultURL, String keyName, SecretValue valueToEncrypt) throws IOException {
+		String keyIdentifier = vaultURL + "/keys/" + keyName;
+		byte[] byteText = valueToEncrypt.toBytes();
+
+		try {
+			return vc.encrypt(keyIdentifier, JsonWebKeyEncryptionAlgorithm.RSA_OAEP, byteText);
+		} finally {
+			Arrays.fill(byteText, (byte) 0);
+		}
+	}
+
 	/**
 	* Decrypts data using the specified key
 	*
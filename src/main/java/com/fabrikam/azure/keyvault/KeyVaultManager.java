@@ -15,6 +15,16 @@ import com.microsoft.azure.management.resources.fluentcore.utils.ResourceNamer;
 import okhttp3.logging.HttpLoggingInterceptor;
 import java.io.File;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import rx.Observable;
+import rx.functions.Action0;
+import rx.functions.Action1;
+import rx.functions.Func0;
+import rx.functions.Func1;
+import rx.schedulers.Schedulers;
 
 import com.microsoft.azure.management.keyvault.AccessPolicy;
 import com.google.common.base.Joiner;
@@ -22,13 +32,38 @@ import com.google.common.base.Joiner;
 public class KeyVaultManager 
 {
 
-    public static ArrayList<KeyPermissions> keyPermissions;
-    public static ArrayList<SecretPermissions> secretPermissions;
-    public static Azure azure;
-    public static Vault vault;
+    public static final int DEFAULT_MAX_CONCURRENT_OPERATIONS = 8;
+
+    // ARM throttles per subscription, so every manager on the same subscription shares one set of permits
+    private static final ConcurrentMap<String, Semaphore> subscriptionPermits = new ConcurrentHashMap<String, Semaphore>();
+
+    // client IDs already read out of properties files, keyed by canonical path
+    private static final ConcurrentMap<String, String> clientIdsByPropsFile = new ConcurrentHashMap<String, String>();
+
+    private final Azure azure;
+    private final int maxConcurrentOperations;
+    private final Semaphore permits;
+    private final AccessPolicyBatcher policyBatcher;
 
     public KeyVaultManager(Azure azure) {
+        this(azure, DEFAULT_MAX_CONCURRENT_OPERATIONS);
+    }
+
+    /**
+	* Creates a manager whose bulk operations run at most maxConcurrentOperations ARM calls at a time
+	* for its subscription. The first manager created for a subscription sets the cap.
+	*
+	* @param azure Authenticated Azure object for the subscription
+	* @param maxConcurrentOperations Cap on concurrent ARM operations for the subscription
+	*/
+
+    public KeyVaultManager(Azure azure, int maxConcurrentOperations) {
         this.azure = azure;
+        this.maxConcurrentOperations = maxConcurrentOperations;
+        Semaphore created = new Semaphore(maxConcurrentOperations);
+        Semaphore existing = subscriptionPermits.putIfAbsent(azure.subscriptionId(), created);
+        this.permits = existing != null ? existing : created;
+        this.policyBatcher = new AccessPolicyBatcher(azure);
     }
 
     /**
@@ -41,9 +76,23 @@ public class KeyVaultManager
 	*/
 
     public Vault createKeyVault(String vaultName, String resourceGroupName) throws Exception{
-        vault = azure.vaults()
+        return createKeyVault(vaultName, resourceGroupName, Region.US_WEST);
+    }
+
+    /**
+	* Creates a Key Vault with the specified name in the specified resource group and region
+	*
+	* @param vaultName Name to be given to the Key Vault
+	* @param resourceGroupName Name of the resource group that the Key Vault will belong to
+	* @param region Region the Key Vault and resource group will be created in
+	* 
+    * @return Vault item containing created Key Vault
+	*/
+
+    public Vault createKeyVault(String vaultName, String resourceGroupName, Region region) throws Exception{
+        Vault vault = azure.vaults()
                     .define(vaultName)
-                    .withRegion(Region.US_WEST)
+                    .withRegion(region)
                     .withNewResourceGroup(resourceGroupName)
                     .withEmptyAccessPolicy()
                     .create();
@@ -51,6 +100,38 @@ public class KeyVaultManager
         return vault;
     }
 
+    /**
+	* Creates many Key Vaults in one resource group, running the creates concurrently
+	*
+	* @param vaultNames Names to be given to the Key Vaults
+	* @param resourceGroupName Name of the resource group that the Key Vaults will belong to, created if missing
+	* @param region Region the Key Vaults and resource group will be created in
+	* 
+    * @return Vault items for every created Key Vault, and the name and error of every vault that failed
+	*/
+
+    public BulkResult<String, Vault> createKeyVaults(List<String> vaultNames, String resourceGroupName, final Region region) throws Exception {
+        final String groupName = resourceGroupName;
+        if (!azure.resourceGroups().checkExistence(groupName)) {
+            azure.resourceGroups().define(groupName).withRegion(region).create();
+        }
+
+        return runAll(vaultNames, new Func1<String, Observable<Vault>>() {
+            public Observable<Vault> call(final String vaultName) {
+                return throttled(new Func0<Observable<Vault>>() {
+                    public Observable<Vault> call() {
+                        return azure.vaults()
+                                .define(vaultName)
+                                .withRegion(region)
+                                .withExistingResourceGroup(groupName)
+                                .withEmptyAccessPolicy()
+                                .createAsync();
+                    }
+                });
+            }
+        });
+    }
+
     /**
 	* Uses application token credentials from a properties file to authorize the application with the Key Vault
 	*
@@ -63,7 +144,7 @@ public class KeyVaultManager
     public Vault authorizeApp(Vault vault, String propsFilePath) throws Exception {
         vault = vault.update()
                     .defineAccessPolicy()
-                    .forServicePrincipal(ApplicationTokenCredentials.fromFile(new File(propsFilePath)).getClientId())
+                    .forServicePrincipal(clientIdFromFile(propsFilePath))
                     .allowKeyAllPermissions()
                     .allowSecretPermissions(SecretPermissions.GET)
                     .allowSecretPermissions(SecretPermissions.LIST)
@@ -72,6 +153,44 @@ public class KeyVaultManager
         return vault;
     }
 
+    /**
+	* Authorizes several applications with each of several Key Vaults. The grants go through this
+	* manager's AccessPolicyBatcher, so all access policies for a vault go out in a single update and
+	* an application that already has a policy is not given a second one. The vaults are updated concurrently.
+	*
+	* @param vaults Vault items to give authorization on
+	* @param propsFilePaths Paths to the properties files of the applications to authorize
+	* 
+    * @return Vault items with the new access policies, and the error of every vault that failed to update
+	*/
+
+    public BulkResult<Vault, Vault> authorizeApps(List<Vault> vaults, List<String> propsFilePaths) throws Exception {
+        for (Vault vault : vaults) {
+            for (String propsFilePath : propsFilePaths) {
+                policyBatcher.authorizeApp(vault, propsFilePath);
+            }
+        }
+
+        return runAll(vaults, new Func1<Vault, Observable<Vault>>() {
+            public Observable<Vault> call(final Vault vault) {
+                return throttled(new Func0<Observable<Vault>>() {
+                    public Observable<Vault> call() {
+                        BulkResult<String, Vault> flushed;
+                        try {
+                            flushed = policyBatcher.flush(vault);
+                        } catch (Exception e) {
+                            return Observable.error(e);
+                        }
+                        if (flushed.hasFailures()) {
+                            return Observable.error(flushed.failed().values().iterator().next());
+                        }
+                        return Observable.from(flushed.succeeded());
+                    }
+                });
+            }
+        });
+    }
+
     /**
 	* Updates permissions for Key Vault
 	*
@@ -91,6 +210,30 @@ public class KeyVaultManager
         return vault;
     }
 
+    /**
+	* Updates permissions for Key Vault, granting all secret permissions to one principal
+	*
+	* @param vault Vault item to update permissions on
+	* @param objectId Object ID of the principal whose access policy is updated
+	* 
+    * @return Vault item with updated permissions
+	*/
+
+    public Vault updatePermissions(Vault vault, String objectId) throws Exception {
+        for (AccessPolicy accessPolicy : vault.accessPolicies()) {
+            if (String.valueOf(accessPolicy.objectId()).equalsIgnoreCase(objectId)) {
+                return vault.update()
+                            .withDeploymentEnabled()
+                            .withTemplateDeploymentEnabled()
+                            .updateAccessPolicy(accessPolicy.objectId())
+                                .allowSecretAllPermissions()
+                                .parent()
+                            .apply();
+            }
+        }
+        throw new IllegalArgumentException("Vault " + vault.name() + " has no access policy for object " + objectId);
+    }
+
     /**
 	* Lists all vaults in a resource group
 	*
@@ -105,6 +248,27 @@ public class KeyVaultManager
         }
     }
 
+    /**
+	* Streams the vaults of many resource groups, listing the groups concurrently
+	*
+	* @param resourceGroupNames Names of the resource groups to list vaults from
+	* 
+    * @return Observable emitting each vault as its page arrives
+	*/
+
+    public Observable<Vault> listVaults(List<String> resourceGroupNames) {
+        return Observable.from(resourceGroupNames).flatMap(new Func1<String, Observable<Vault>>() {
+            public Observable<Vault> call(final String resourceGroupName) {
+                return throttled(new Func0<Observable<Vault>>() {
+                    public Observable<Vault> call() {
+                        // PagedList fetches the next page only when iteration reaches it
+                        return Observable.from(azure.vaults().listByGroup(resourceGroupName));
+                    }
+                });
+            }
+        }, maxConcurrentOperations);
+    }
+
     /**
 	* Deletes a Key Vault
 	*
@@ -115,6 +279,107 @@ public class KeyVaultManager
         azure.vaults().delete(vault.id());
     }
 
+    /**
+	* Deletes a Key Vault by its resource ID
+	*
+	* @param vaultId Resource ID of the key vault to be deleted
+	*/
+
+    public void deleteVault(String vaultId) throws Exception {
+        azure.vaults().delete(vaultId);
+    }
+
+    /**
+	* Deletes many Key Vaults concurrently
+	*
+	* @param vaults Vault items to be deleted
+	* 
+    * @return Vault items that were deleted, and the error of every vault that failed to delete
+	*/
+
+    public BulkResult<Vault, Vault> deleteVaults(List<Vault> vaults) throws Exception {
+        return runAll(vaults, new Func1<Vault, Observable<Vault>>() {
+            public Observable<Vault> call(final Vault vault) {
+                return throttled(new Func0<Observable<Vault>>() {
+                    public Observable<Vault> call() {
+                        return azure.vaults().deleteAsync(vault.id())
+                                .lastOrDefault(null)
+                                .map(new Func1<Void, Vault>() {
+                                    public Vault call(Void ignored) {
+                                        return vault;
+                                    }
+                                });
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+	* Reads the client ID out of an application token properties file, parsing each file only once
+	*
+	* @param propsFilePath String containing path to file that contains properties for creating application token
+	* 
+    * @return Client ID of the application
+	*/
+
+    static String clientIdFromFile(String propsFilePath) throws Exception {
+        String path = new File(propsFilePath).getCanonicalPath();
+        String clientId = clientIdsByPropsFile.get(path);
+        if (clientId == null) {
+            clientId = ApplicationTokenCredentials.fromFile(new File(path)).getClientId();
+            clientIdsByPropsFile.putIfAbsent(path, clientId);
+        }
+        return clientId;
+    }
+
+    // run one operation per item with at most maxConcurrentOperations in flight. A failed item is recorded
+    // against that item and never cancels or hides the others.
+    private <S, T> BulkResult<S, T> runAll(List<S> items, final Func1<S, Observable<T>> operation) {
+        final BulkResult<S, T> result = new BulkResult<S, T>();
+        Observable.from(items).flatMap(new Func1<S, Observable<T>>() {
+            public Observable<T> call(final S item) {
+                return operation.call(item)
+                        .doOnNext(new Action1<T>() {
+                            public void call(T value) {
+                                result.addSuccess(value);
+                            }
+                        })
+                        .onErrorResumeNext(new Func1<Throwable, Observable<T>>() {
+                            public Observable<T> call(Throwable error) {
+                                result.addFailure(item, error instanceof Exception
+                                        ? (Exception) error : new RuntimeException(error));
+                                return Observable.empty();
+                            }
+                        });
+            }
+        }, maxConcurrentOperations).toBlocking().lastOrDefault(null);
+        return result;
+    }
+
+    // defer the operation onto an io thread and hold one of the subscription's permits while it runs
+    private <T> Observable<T> throttled(final Func0<Observable<T>> operation) {
+        return Observable.defer(new Func0<Observable<T>>() {
+            public Observable<T> call() {
+                permits.acquireUninterruptibly();
+                final AtomicBoolean released = new AtomicBoolean();
+                Action0 release = new Action0() {
+                    public void call() {
+                        if (released.compareAndSet(false, true)) {
+                            permits.release();
+                        }
+                    }
+                };
+                try {
+                    return operation.call().doOnTerminate(release).doOnUnsubscribe(release);
+                } catch (RuntimeException e) {
+                    release.call();
+                    return Observable.error(e);
+                }
+            }
+        }).subscribeOn(Schedulers.io());
+    }
+
 
 
     /**
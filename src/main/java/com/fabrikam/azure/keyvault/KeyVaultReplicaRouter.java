@@ -0,0 +1,373 @@
+package com.fabrikam.azure.keyvault;
+
+import com.microsoft.azure.keyvault.models.KeyBundle;
+import com.microsoft.azure.keyvault.models.SecretBundle;
+import com.microsoft.rest.RestException;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Routes secret and key reads across a set of replicated vaults.
+ *
+ * Each read goes to the healthy replica with the lowest EWMA latency. If it has not
+ * answered within that replica's recent p95 latency the read is hedged to the next
+ * replica, and the first successful answer wins. A hedge loser that is cancelled still
+ * counts the time it had taken as a latency sample, so a replica that turns slow drops
+ * down the ranking. Transport errors, 5xx and 429 responses fail over to the next replica
+ * and eject the failing one for a short, growing backoff period. A 404 is tried on the
+ * remaining replicas without ejecting anyone, since a replica may not have caught up with
+ * a recent write yet. Other 4xx responses, such as a forbidden secret, are the same on
+ * every replica and are thrown straight back to the caller.
+ */
+
+public class KeyVaultReplicaRouter implements Closeable {
+
+    private static final double EWMA_ALPHA = 0.2;
+    private static final int SAMPLE_WINDOW = 64;
+    private static final long DEFAULT_HEDGE_DELAY_MILLIS = 100;
+    private static final long MIN_HEDGE_DELAY_MILLIS = 5;
+    private static final long BASE_EJECTION_MILLIS = 1000;
+    private static final long MAX_EJECTION_MILLIS = 60000;
+
+    private final KeyVaultHandler kvh;
+    private final List<Replica> replicas;
+    private final ExecutorService executor;
+    private final boolean ownsExecutor;
+
+    /**
+     * Creates a router over the given replicas, using its own pool of daemon threads for
+     * reads. close() shuts the pool down.
+     *
+     * @param kvh KeyVaultHandler used to issue the reads
+     * @param vaultURLs URLs of the vaults that hold the same secrets and keys
+     */
+
+    public KeyVaultReplicaRouter(KeyVaultHandler kvh, List<String> vaultURLs) {
+        this(kvh, vaultURLs, Executors.newCachedThreadPool(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "vault-replica-read");
+                thread.setDaemon(true);
+                return thread;
+            }
+        }), true);
+    }
+
+    /**
+     * Creates a router over the given replicas.
+     *
+     * @param kvh KeyVaultHandler used to issue the reads
+     * @param vaultURLs URLs of the vaults that hold the same secrets and keys
+     * @param executor ExecutorService the primary and hedged reads run on, left running by close()
+     */
+
+    public KeyVaultReplicaRouter(KeyVaultHandler kvh, List<String> vaultURLs, ExecutorService executor) {
+        this(kvh, vaultURLs, executor, false);
+    }
+
+    private KeyVaultReplicaRouter(KeyVaultHandler kvh, List<String> vaultURLs, ExecutorService executor,
+            boolean ownsExecutor) {
+        if (vaultURLs.isEmpty()) {
+            throw new IllegalArgumentException("At least one vault URL is required");
+        }
+        this.kvh = kvh;
+        this.executor = executor;
+        this.ownsExecutor = ownsExecutor;
+        List<Replica> list = new ArrayList<Replica>();
+        for (String vaultURL : vaultURLs) {
+            list.add(new Replica(vaultURL));
+        }
+        this.replicas = Collections.unmodifiableList(list);
+    }
+
+    /**
+     * Retrieves a secret's SecretBundle item from the fastest healthy replica
+     *
+     * @param secretName Name of the secret that is to be retrieved
+     *
+     * @return SecretBundle item for the secret
+     */
+
+    public SecretBundle showSecret(final String secretName) throws IOException {
+        return route(new ReplicaCall<SecretBundle>() {
+            public SecretBundle call(String vaultURL) throws IOException {
+                return kvh.showSecret(vaultURL, secretName);
+            }
+        });
+    }
+
+    /**
+     * Retrieves a key's KeyBundle item from the fastest healthy replica
+     *
+     * @param keyName Name of the key that is to be retrieved
+     *
+     * @return KeyBundle item for the key
+     */
+
+    public KeyBundle showKey(final String keyName) throws IOException {
+        return route(new ReplicaCall<KeyBundle>() {
+            public KeyBundle call(String vaultURL) throws IOException {
+                return kvh.showKey(vaultURL, keyName);
+            }
+        });
+    }
+
+    /**
+     * Returns the replica URLs in the order the next read would try them.
+     */
+
+    public List<String> rankedVaultURLs() {
+        List<String> urls = new ArrayList<String>();
+        for (Replica replica : rank()) {
+            urls.add(replica.vaultURL);
+        }
+        return urls;
+    }
+
+    /**
+     * Stops the router's own read threads. A caller supplied executor is left running.
+     */
+
+    public void close() {
+        if (ownsExecutor) {
+            executor.shutdownNow();
+        }
+    }
+
+    private <T> T route(ReplicaCall<T> call) throws IOException {
+        List<Replica> ranked = rank();
+        CompletionService<T> completion = new ExecutorCompletionService<T>(executor);
+        Map<Future<T>, Attempt> inFlight = new HashMap<Future<T>, Attempt>();
+        long hedgeDelayNanos = ranked.get(0).hedgeDelayNanos();
+        boolean hedged = false;
+        int next = 0;
+        Exception lastError = null;
+
+        submit(completion, inFlight, ranked.get(next), call);
+        next++;
+
+        try {
+            while (!inFlight.isEmpty()) {
+                Future<T> done;
+                if (!hedged && next < ranked.size()) {
+                    done = completion.poll(hedgeDelayNanos, TimeUnit.NANOSECONDS);
+                    if (done == null) {
+                        // the primary is slower than its p95, race it against the next replica
+                        submit(completion, inFlight, ranked.get(next), call);
+                        next++;
+                        hedged = true;
+                        continue;
+                    }
+                } else {
+                    done = completion.take();
+                }
+                inFlight.remove(done);
+                try {
+                    return done.get();
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof Error) {
+                        throw (Error) e.getCause();
+                    }
+                    lastError = (Exception) e.getCause();
+                    if (!isReplicaFault(lastError) && !isNotFound(lastError)) {
+                        // the request itself is wrong; every replica would answer the same
+                        break;
+                    }
+                    if (inFlight.isEmpty() && next < ranked.size()) {
+                        submit(completion, inFlight, ranked.get(next), call);
+                        next++;
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a vault replica");
+        } finally {
+            long now = System.nanoTime();
+            for (Map.Entry<Future<T>, Attempt> loser : inFlight.entrySet()) {
+                if (loser.getKey().cancel(true)) {
+                    // the loser had not answered after this long, so its latency is at least that
+                    loser.getValue().replica.recordLowerBound(now - loser.getValue().startNanos);
+                }
+            }
+        }
+
+        if (lastError instanceof IOException) {
+            throw (IOException) lastError;
+        }
+        if (lastError instanceof RuntimeException) {
+            throw (RuntimeException) lastError;
+        }
+        throw new IOException("All vault replicas failed", lastError);
+    }
+
+    private <T> void submit(CompletionService<T> completion, Map<Future<T>, Attempt> inFlight, Replica replica,
+            ReplicaCall<T> call) {
+        replica.recordAttempt();
+        inFlight.put(completion.submit(timed(replica, call)), new Attempt(replica, System.nanoTime()));
+    }
+
+    private <T> Callable<T> timed(final Replica replica, final ReplicaCall<T> call) {
+        return new Callable<T>() {
+            public T call() throws Exception {
+                long start = System.nanoTime();
+                try {
+                    T result = call.call(replica.vaultURL);
+                    replica.recordSuccess(System.nanoTime() - start);
+                    return result;
+                } catch (Exception e) {
+                    // a hedge loser being cancelled is not the replica's fault, and neither is a bad request
+                    if (Thread.currentThread().isInterrupted() || e instanceof InterruptedIOException) {
+                        throw e;
+                    }
+                    if (isReplicaFault(e)) {
+                        replica.recordFailure();
+                    } else {
+                        // the replica answered, just not with what was asked for
+                        replica.recordLatency(System.nanoTime() - start);
+                    }
+                    throw e;
+                }
+            }
+        };
+    }
+
+    // transport errors, server errors and throttling say something about the replica; anything else
+    // (404, 403, a bad argument) says something about the request
+    private static boolean isReplicaFault(Exception e) {
+        if (e instanceof IOException) {
+            return true;
+        }
+        if (e instanceof RestException) {
+            RestException rest = (RestException) e;
+            if (rest.response() == null) {
+                return true;
+            }
+            int status = rest.response().code();
+            return status >= 500 || status == 429;
+        }
+        return false;
+    }
+
+    private static boolean isNotFound(Exception e) {
+        return e instanceof RestException && ((RestException) e).response() != null
+                && ((RestException) e).response().code() == 404;
+    }
+
+    // healthy replicas by EWMA latency first, then ejected replicas as a last resort
+    private List<Replica> rank() {
+        final long now = System.currentTimeMillis();
+        List<Replica> ranked = new ArrayList<Replica>(replicas);
+        Collections.sort(ranked, new Comparator<Replica>() {
+            public int compare(Replica a, Replica b) {
+                boolean aHealthy = a.isHealthy(now);
+                boolean bHealthy = b.isHealthy(now);
+                if (aHealthy != bHealthy) {
+                    return aHealthy ? -1 : 1;
+                }
+                return Double.compare(a.ewmaNanos(), b.ewmaNanos());
+            }
+        });
+        return ranked;
+    }
+
+    private interface ReplicaCall<T> {
+        T call(String vaultURL) throws IOException;
+    }
+
+    private static final class Attempt {
+
+        final Replica replica;
+        final long startNanos;
+
+        Attempt(Replica replica, long startNanos) {
+            this.replica = replica;
+            this.startNanos = startNanos;
+        }
+    }
+
+    private static final class Replica {
+
+        final String vaultURL;
+        private double ewmaNanos;
+        private final long[] samples = new long[SAMPLE_WINDOW];
+        private int sampleCount;
+        private int samplePos;
+        private int consecutiveFailures;
+        private long ejectedUntil;
+
+        Replica(String vaultURL) {
+            this.vaultURL = vaultURL;
+        }
+
+        synchronized void recordSuccess(long nanos) {
+            recordLatency(nanos);
+            consecutiveFailures = 0;
+            ejectedUntil = 0;
+        }
+
+        synchronized void recordLatency(long nanos) {
+            ewmaNanos = sampleCount == 0 ? nanos : EWMA_ALPHA * nanos + (1 - EWMA_ALPHA) * ewmaNanos;
+            samples[samplePos] = nanos;
+            samplePos = (samplePos + 1) % SAMPLE_WINDOW;
+            sampleCount = Math.min(sampleCount + 1, SAMPLE_WINDOW);
+        }
+
+        // a cancelled read only says the latency was at least this much, which is news only
+        // when it is worse than what we already believe
+        synchronized void recordLowerBound(long nanos) {
+            if (sampleCount == 0 || nanos > ewmaNanos) {
+                recordLatency(nanos);
+            }
+        }
+
+        // until a replica has answered once it is assumed to take the default hedge delay, so
+        // it is probed first but does not stay at the top of the ranking if it never answers
+        synchronized void recordAttempt() {
+            if (sampleCount == 0) {
+                ewmaNanos = Math.max(ewmaNanos, TimeUnit.MILLISECONDS.toNanos(DEFAULT_HEDGE_DELAY_MILLIS));
+            }
+        }
+
+        synchronized void recordFailure() {
+            consecutiveFailures++;
+            long backoff = Math.min(MAX_EJECTION_MILLIS, BASE_EJECTION_MILLIS << Math.min(consecutiveFailures - 1, 16));
+            ejectedUntil = System.currentTimeMillis() + backoff;
+        }
+
+        synchronized boolean isHealthy(long now) {
+            return now >= ejectedUntil;
+        }
+
+        // replicas that have never been tried sort first so they get probed
+        synchronized double ewmaNanos() {
+            return ewmaNanos;
+        }
+
+        synchronized long hedgeDelayNanos() {
+            if (sampleCount == 0) {
+                return TimeUnit.MILLISECONDS.toNanos(DEFAULT_HEDGE_DELAY_MILLIS);
+            }
+            long[] window = Arrays.copyOf(samples, sampleCount);
+            Arrays.sort(window);
+            long p95 = window[(int) Math.ceil(0.95 * sampleCount) - 1];
+            return Math.max(p95, TimeUnit.MILLISECONDS.toNanos(MIN_HEDGE_DELAY_MILLIS));
+        }
+    }
+}
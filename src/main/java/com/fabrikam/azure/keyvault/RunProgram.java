@@ -1,13 +1,6 @@
 package com.fabrikam.azure.keyvault;
 
-import com.microsoft.azure.keyvault.authentication.KeyVaultCredentials;
-import com.microsoft.azure.keyvault.KeyVaultClient;
-import com.microsoft.azure.keyvault.webkey.JsonWebKeyType;
-import com.microsoft.azure.keyvault.models.KeyOperationResult;
-import com.microsoft.azure.management.Azure;
 import java.io.File;
-import com.microsoft.azure.management.keyvault.Vault;
-import okhttp3.logging.HttpLoggingInterceptor;
 
 public class RunProgram 
 {
@@ -16,59 +9,35 @@ public class RunProgram
     public static void main(String[] args)
     { 
         String PATH_TO_PROPS = "azureauth.properties";
-        String vaultName = "manageKeyVault";
-        String resourceGroupName = "resourceGroup";
-        String vaultURL = "";
-        String keyName = "keyOperationsKey";
-        String secretName = "secretOperationsSecret";
-        JsonWebKeyType jsonWebKeyType = JsonWebKeyType.RSA;
-        String secretValue = "secretValue";
-        String textToEncrypt = "Encrypt Text";
         String APP_ID = "";
         String SECRET_KEY = "";
+        int threads = Integer.getInteger("workload.threads", 16);
+        int maxInFlight = Integer.getInteger("workload.maxInFlight", 256);
 
-        try {
-        //Auth and get Azure Subscription for management plane
-        Azure azure = Azure.configure().withLogLevel(HttpLoggingInterceptor.Level.NONE).authenticate(new File(PATH_TO_PROPS)).withDefaultSubscription();
-        System.out.println(azure.subscriptionId());
-
-        //Auth and get KeyVaultClient for operational plane
-		KeyVaultCredentials kvCred = new ClientSecretKeyVaultCredential(APP_ID, SECRET_KEY);
-		KeyVaultClient vc = new KeyVaultClient(kvCred);
-
-        KeyVaultHandler kvh = new KeyVaultHandler(vc);
-        KeyVaultManager kvm = new KeyVaultManager(azure);
-
-            //Management Plane Operations
-            Vault vault = kvm.createKeyVault(vaultName, resourceGroupName);
-            vault = kvm.authorizeApp(vault, PATH_TO_PROPS);
-            vault = kvm.updatePermissions(vault);
-            kvm.listVaults(resourceGroupName);
-            kvm.deleteVault(vault);
+        if (args.length < 1) {
+            System.out.println("usage: RunProgram <workload file (.jsonl or .csv)> [checkpoint file]");
+            System.exit(2);
+        }
+        File workload = new File(args[0]);
+        File checkpoint = new File(args.length > 1 ? args[1] : args[0] + ".checkpoint");
 
-            //Key Operations
-            kvh.createKey(vaultURL, keyName, jsonWebKeyType);
-            kvh.updateKey(vaultURL, keyName);
-            kvh.showKey(vaultURL, keyName);
-            kvh.listKeys(vaultURL);
-            KeyOperationResult kor = kvh.encryptData(vaultURL, keyName, textToEncrypt);
-            kvh.decryptData(vaultURL, keyName, kor.result());
-            kvh.deleteKey(vaultURL, keyName);
-        
-            //Secret Operations
-            kvh.createSecret(vaultURL, secretName, secretValue);
-            kvh.updateSecret(vaultURL, secretName);
-            kvh.showSecret(vaultURL, secretName);
-            kvh.listSecrets(vaultURL);
-            kvh.deleteSecret(vaultURL, secretName);
+        //Clients are built the first time an operation in the workload needs them
+        StartupTimer timer = new StartupTimer();
+        ClientBootstrap clients = new ClientBootstrap(PATH_TO_PROPS, APP_ID, SECRET_KEY, timer);
 
+        long failed;
+        try {
+            failed = new WorkloadRunner(clients, threads, maxInFlight).run(workload, checkpoint);
         } catch (Exception e) {
             System.out.println(e.getMessage());
+            timer.report();
             System.exit(-1);
+            return;
         }
-        
+
+        timer.report();
         System.out.println("DONE");
-        System.exit(0);
+        System.exit(failed == 0 ? 0 : 1);
 
 
     }
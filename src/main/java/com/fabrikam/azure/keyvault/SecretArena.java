@@ -0,0 +1,153 @@
+package com.fabrikam.azure.keyvault;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Hands out blocks of direct memory for secret values, carved from shared slabs.
+ *
+ * Blocks come in power of two sizes and a released block goes back on the free list of its
+ * size, so creating and closing values reuses the same native memory instead of allocating
+ * a direct buffer per value and waiting for the garbage collector to free it. Values too
+ * large for a size class get a direct buffer of their own.
+ *
+ * Every block handed out is leased to the object that holds it. Closing the owner frees the
+ * lease straight away. If the owner is dropped without being closed, a daemon thread frees
+ * the lease once the garbage collector finds the owner unreachable, so the block is still
+ * zeroed and reused, only later.
+ */
+
+final class SecretArena {
+
+    private static final int SLAB_BYTES = 64 * 1024;
+    private static final int MIN_BLOCK_BYTES = 16;
+    private static final int MAX_BLOCK_BYTES = SLAB_BYTES / 4;
+
+    private static final SecretArena SHARED = new SecretArena();
+
+    private final List<ArrayDeque<ByteBuffer>> freeBlocks = new ArrayList<ArrayDeque<ByteBuffer>>();
+    private ByteBuffer slab;
+
+    private final ReferenceQueue<Object> abandoned = new ReferenceQueue<Object>();
+    // keeps the leases themselves reachable until they are freed, or the queue would never see them
+    private final Set<Lease> leases = Collections.synchronizedSet(
+            Collections.newSetFromMap(new IdentityHashMap<Lease, Boolean>()));
+
+    private SecretArena() {
+        for (int i = 0; i <= sizeClass(MAX_BLOCK_BYTES); i++) {
+            freeBlocks.add(new ArrayDeque<ByteBuffer>());
+        }
+        Thread cleaner = new Thread(new Runnable() {
+            public void run() {
+                while (true) {
+                    try {
+                        ((Lease) abandoned.remove()).free();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        }, "secret-arena-cleaner");
+        cleaner.setDaemon(true);
+        cleaner.start();
+    }
+
+    static SecretArena shared() {
+        return SHARED;
+    }
+
+    /**
+	* Leases a zeroed block of at least length bytes to owner. The block is zeroed up to length and
+	* returned to the arena when the lease is freed, or once owner is garbage collected.
+	*/
+
+    Lease lease(Object owner, int length) {
+        Lease lease = new Lease(owner, abandoned, this, allocate(length), length);
+        leases.add(lease);
+        return lease;
+    }
+
+    // a zeroed block of at least length bytes
+    synchronized ByteBuffer allocate(int length) {
+        if (length > MAX_BLOCK_BYTES) {
+            return ByteBuffer.allocateDirect(length);
+        }
+        int sizeClass = sizeClass(length);
+        ByteBuffer block = freeBlocks.get(sizeClass).poll();
+        if (block != null) {
+            return block;
+        }
+
+        int blockBytes = MIN_BLOCK_BYTES << sizeClass;
+        if (slab == null || slab.remaining() < blockBytes) {
+            // the unused tail of the old slab is too small for this block and stays unused
+            slab = ByteBuffer.allocateDirect(SLAB_BYTES);
+        }
+        slab.limit(slab.position() + blockBytes);
+        block = slab.slice();
+        slab.position(slab.limit());
+        slab.limit(slab.capacity());
+        return block;
+    }
+
+    // takes back a block from allocate(); the caller must already have zeroed what it wrote
+    synchronized void release(ByteBuffer block) {
+        int capacity = block.capacity();
+        if (capacity > MAX_BLOCK_BYTES) {
+            return;
+        }
+        block.clear();
+        freeBlocks.get(sizeClass(capacity)).push(block);
+    }
+
+    private static int sizeClass(int length) {
+        int sizeClass = 0;
+        while ((MIN_BLOCK_BYTES << sizeClass) < length) {
+            sizeClass++;
+        }
+        return sizeClass;
+    }
+
+    /**
+     * A block held by one owner. Only the arena's own reference queue ever sees the owner.
+     */
+
+    static final class Lease extends PhantomReference<Object> {
+
+        private final SecretArena arena;
+        private final int length;
+        private ByteBuffer block;
+
+        private Lease(Object owner, ReferenceQueue<Object> queue, SecretArena arena, ByteBuffer block, int length) {
+            super(owner, queue);
+            this.arena = arena;
+            this.block = block;
+            this.length = length;
+        }
+
+        synchronized ByteBuffer block() {
+            return block;
+        }
+
+        // zeroes what the owner wrote and hands the block back; later calls do nothing
+        synchronized void free() {
+            if (block == null) {
+                return;
+            }
+            for (int i = 0; i < length; i++) {
+                block.put(i, (byte) 0);
+            }
+            arena.release(block);
+            block = null;
+            clear();
+            arena.leases.remove(this);
+        }
+    }
+}
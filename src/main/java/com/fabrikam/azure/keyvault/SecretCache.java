@@ -0,0 +1,121 @@
+package com.fabrikam.azure.keyvault;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Bounded, least recently used cache of secret values held off-heap.
+ *
+ * The cache owns the values put into it and zeroes them when they are evicted, replaced,
+ * removed or when the cache is closed. withValue() lets the caller read a value in place,
+ * and an eviction waits until that read has finished. get() hands out a copy the caller
+ * owns, for values that must outlive the call.
+ */
+
+public class SecretCache implements Closeable {
+
+    private final LinkedHashMap<String, SecretValue> values;
+
+    /**
+	* @param maxEntries Number of secrets kept before the least recently used is evicted
+	*/
+
+    public SecretCache(final int maxEntries) {
+        this.values = new LinkedHashMap<String, SecretValue>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, SecretValue> eldest) {
+                if (size() > maxEntries) {
+                    eldest.getValue().close();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+	* Stores a value, taking ownership of it and closing any value previously stored under the name
+	*
+	* @param name Name the value is stored under
+	* @param value SecretValue owned by the cache from now on
+	*/
+
+    public synchronized void put(String name, SecretValue value) {
+        SecretValue previous = values.put(name, value);
+        if (previous != null && previous != value) {
+            previous.close();
+        }
+    }
+
+    /**
+	* Returns a copy of the cached value for the caller to close, or null if none is cached
+	*
+	* @param name Name the value is stored under
+	*/
+
+    public synchronized SecretValue get(String name) {
+        SecretValue value = values.get(name);
+        return value != null ? value.copy() : null;
+    }
+
+    /**
+	* Reads a cached value in place, without copying it. The visitor must not call back into the
+	* cache, since an eviction of the value waits for the visitor to return.
+	*
+	* @param name Name the value is stored under
+	* @param visitor Reads the value's UTF-8 bytes
+	*
+    * @return What the visitor returned, or null without calling it if nothing is cached
+	*/
+
+    public <R> R withValue(String name, SecretValue.Visitor<R> visitor) throws Exception {
+        while (true) {
+            SecretValue value;
+            synchronized (this) {
+                value = values.get(name);
+            }
+            if (value == null) {
+                return null;
+            }
+            synchronized (value) {
+                if (!value.isClosed()) {
+                    return value.withValue(visitor);
+                }
+            }
+            // evicted or replaced between the lookup and the read; look it up again
+        }
+    }
+
+    public synchronized boolean contains(String name) {
+        return values.containsKey(name);
+    }
+
+    public synchronized List<String> names() {
+        return new ArrayList<String>(values.keySet());
+    }
+
+    public synchronized int size() {
+        return values.size();
+    }
+
+    public synchronized void remove(String name) {
+        SecretValue removed = values.remove(name);
+        if (removed != null) {
+            removed.close();
+        }
+    }
+
+    /**
+	* Zeroes and drops every cached value
+	*/
+
+    public synchronized void close() {
+        for (SecretValue value : values.values()) {
+            value.close();
+        }
+        values.clear();
+    }
+}
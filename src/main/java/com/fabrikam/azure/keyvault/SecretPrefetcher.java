@@ -0,0 +1,376 @@
+package com.fabrikam.azure.keyvault;
+
+import com.microsoft.azure.keyvault.models.KeyBundle;
+import com.microsoft.rest.RestException;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Fetches the secrets and keys a service needs at startup in parallel, and optionally keeps
+ * an encrypted warm-start snapshot of the secrets on local disk.
+ *
+ * With a snapshot present, start() serves every secret from it straight away and refreshes
+ * them from the vault in the background, rewriting the snapshot once that finishes. Each
+ * snapshot entry is sealed with AES-GCM under a caller supplied key, with the secret name as
+ * associated data. The file is memory-mapped; each entry is decrypted into a heap array that
+ * is moved into a SecretValue and zeroed straight away. The JCE provider keeps internal heap
+ * copies of the data it processes that this class cannot clear, so the snapshot shortens the
+ * time plaintext spends on the heap but does not avoid it.
+ *
+ * A secret the vault answers with a 4xx, such as one that was deleted or whose access was
+ * revoked, is dropped from the cache and so from the rewritten snapshot. A transport error,
+ * throttling or a 5xx keeps the cached value until the vault can be asked again.
+ *
+ * Keys are not snapshotted. On a warm start they are fetched in the background with the
+ * secrets, and key() fetches one on demand if it is asked for before that has finished.
+ *
+ * A manifest file lists one name per line, as "secret NAME" or "key NAME"; blank lines and
+ * lines starting with # are ignored.
+ */
+
+public class SecretPrefetcher implements Closeable {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int SNAPSHOT_MAGIC = 0x4b565331;
+    private static final int IV_BYTES = 12;
+    private static final int TAG_BITS = 128;
+
+    private final KeyVaultHandler kvh;
+    private final String vaultURL;
+    private final SecretCache secrets;
+    private final ConcurrentMap<String, KeyBundle> keys = new ConcurrentHashMap<String, KeyBundle>();
+    private final ExecutorService executor;
+    private final SecureRandom random = new SecureRandom();
+    private final List<String> secretNames = new ArrayList<String>();
+    private final List<String> keyNames = new ArrayList<String>();
+
+    /**
+	* @param kvh KeyVaultHandler used to fetch the secrets and keys
+	* @param vaultURL URL of the vault in Azure the secrets and keys belong to
+	* @param manifest File naming the secrets and keys to fetch
+	* @param parallelism Number of fetches that run at the same time
+	*/
+
+    public SecretPrefetcher(KeyVaultHandler kvh, String vaultURL, File manifest, int parallelism) throws IOException {
+        this.kvh = kvh;
+        this.vaultURL = vaultURL;
+        this.executor = Executors.newFixedThreadPool(parallelism);
+        readManifest(manifest);
+        // room for secrets fetched on demand without evicting the manifest ones
+        this.secrets = new SecretCache(secretNames.size() + 256);
+    }
+
+    /**
+	* Makes every manifest entry available, from the snapshot if one can be loaded and from the vault otherwise
+	*
+	* @param snapshot File the warm-start snapshot is kept in, or null to always fetch from the vault
+	* @param snapshotKey AES key (16, 24 or 32 bytes) the snapshot is sealed with
+	*
+	* @return Future that completes once every entry has been checked against the vault, with
+	*         the names that could not be fetched
+	*/
+
+    public Future<Map<String, Exception>> start(final File snapshot, final byte[] snapshotKey) throws IOException {
+        boolean warm = snapshot != null && snapshot.exists() && loadSnapshot(snapshot, snapshotKey);
+        FutureTask<Map<String, Exception>> revalidate = new FutureTask<Map<String, Exception>>(new Callable<Map<String, Exception>>() {
+            public Map<String, Exception> call() throws Exception {
+                Map<String, Exception> failures = fetchAll();
+                if (snapshot != null) {
+                    saveSnapshot(snapshot, snapshotKey);
+                }
+                return failures;
+            }
+        });
+
+        if (warm) {
+            Thread background = new Thread(revalidate, "secret-revalidate");
+            background.setDaemon(true);
+            background.start();
+        } else {
+            // nothing to serve yet, so wait for the vault before returning
+            revalidate.run();
+        }
+        return revalidate;
+    }
+
+    /**
+	* Returns a copy of a prefetched secret for the caller to close, fetching it now if it was not prefetched
+	*
+	* @param secretName Name of the secret
+	*/
+
+    public SecretValue secret(String secretName) throws IOException {
+        SecretValue value = secrets.get(secretName);
+        if (value == null) {
+            secrets.put(secretName, kvh.getSecretValue(vaultURL, secretName));
+            value = secrets.get(secretName);
+        }
+        return value;
+    }
+
+    /**
+	* Returns a prefetched key's KeyBundle item, fetching it now if it was not prefetched
+	*
+	* @param keyName Name of the key
+	*/
+
+    public KeyBundle key(String keyName) throws IOException {
+        KeyBundle bundle = keys.get(keyName);
+        if (bundle == null) {
+            bundle = kvh.showKey(vaultURL, keyName);
+            keys.put(keyName, bundle);
+        }
+        return bundle;
+    }
+
+    /**
+	* Fetches every manifest entry from the vault in parallel. An entry the vault answers with a
+	* 4xx other than 408 or 429 is dropped from the cache; after any other failure the cached
+	* entry, if there is one, is kept.
+	*
+	* @return Names that could not be fetched, with the reason
+	*/
+
+    public Map<String, Exception> fetchAll() throws InterruptedException {
+        Map<String, Future<?>> fetches = new LinkedHashMap<String, Future<?>>();
+        for (final String secretName : secretNames) {
+            fetches.put("secret " + secretName, executor.submit(new Callable<Void>() {
+                public Void call() throws Exception {
+                    try {
+                        secrets.put(secretName, kvh.getSecretValue(vaultURL, secretName));
+                    } catch (RestException e) {
+                        if (isRevoked(e)) {
+                            // keep serving it only while the vault cannot say otherwise
+                            secrets.remove(secretName);
+                        }
+                        throw e;
+                    }
+                    return null;
+                }
+            }));
+        }
+        for (final String keyName : keyNames) {
+            fetches.put("key " + keyName, executor.submit(new Callable<Void>() {
+                public Void call() throws Exception {
+                    try {
+                        keys.put(keyName, kvh.showKey(vaultURL, keyName));
+                    } catch (RestException e) {
+                        if (isRevoked(e)) {
+                            keys.remove(keyName);
+                        }
+                        throw e;
+                    }
+                    return null;
+                }
+            }));
+        }
+
+        Map<String, Exception> failures = new LinkedHashMap<String, Exception>();
+        for (Map.Entry<String, Future<?>> fetch : fetches.entrySet()) {
+            try {
+                fetch.getValue().get();
+            } catch (ExecutionException e) {
+                failures.put(fetch.getKey(), e.getCause() instanceof Exception ? (Exception) e.getCause() : e);
+            }
+        }
+        return failures;
+    }
+
+    /**
+	* Seals every cached secret into the snapshot file, replacing it atomically
+	*
+	* @param snapshot File the warm-start snapshot is kept in
+	* @param snapshotKey AES key (16, 24 or 32 bytes) the snapshot is sealed with
+	*/
+
+    public void saveSnapshot(File snapshot, byte[] snapshotKey) throws IOException, GeneralSecurityException {
+        File temp = new File(snapshot.getPath() + ".tmp");
+        Map<String, byte[]> sealedByName = new LinkedHashMap<String, byte[]>();
+        Map<String, byte[]> ivByName = new LinkedHashMap<String, byte[]>();
+        for (String name : secrets.names()) {
+            final byte[] iv = new byte[IV_BYTES];
+            random.nextBytes(iv);
+            final Cipher cipher = cipher(Cipher.ENCRYPT_MODE, snapshotKey, iv, name.getBytes(UTF8));
+            byte[] sealed;
+            try {
+                sealed = secrets.withValue(name, new SecretValue.Visitor<byte[]>() {
+                    public byte[] visit(ByteBuffer utf8) throws Exception {
+                        // the cipher needs a heap array; zero it as soon as the entry is sealed
+                        byte[] plain = new byte[utf8.remaining()];
+                        utf8.get(plain);
+                        try {
+                            return cipher.doFinal(plain);
+                        } finally {
+                            Arrays.fill(plain, (byte) 0);
+                        }
+                    }
+                });
+            } catch (GeneralSecurityException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new IOException(e);
+            }
+            if (sealed != null) {
+                sealedByName.put(name, sealed);
+                ivByName.put(name, iv);
+            }
+        }
+
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(temp));
+        try {
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(sealedByName.size());
+            for (Map.Entry<String, byte[]> entry : sealedByName.entrySet()) {
+                byte[] nameBytes = entry.getKey().getBytes(UTF8);
+                out.writeInt(nameBytes.length);
+                out.write(nameBytes);
+                out.write(ivByName.get(entry.getKey()));
+                out.writeInt(entry.getValue().length);
+                out.write(entry.getValue());
+            }
+        } finally {
+            out.close();
+        }
+        Files.move(temp.toPath(), snapshot.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+	* Loads the secrets of a snapshot into the cache
+	*
+	* @param snapshot File the warm-start snapshot is kept in
+	* @param snapshotKey AES key (16, 24 or 32 bytes) the snapshot is sealed with
+	*
+	* @return true if the snapshot was complete and every entry decrypted
+	*/
+
+    public boolean loadSnapshot(File snapshot, byte[] snapshotKey) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(snapshot, "r");
+        try {
+            MappedByteBuffer mapped = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+            if (mapped.remaining() < 8 || mapped.getInt() != SNAPSHOT_MAGIC) {
+                return false;
+            }
+            int count = mapped.getInt();
+            for (int i = 0; i < count; i++) {
+                // a corrupt length must not size an allocation, so check it against what is left first
+                int nameLength = readLength(mapped);
+                if (nameLength < 0) {
+                    return false;
+                }
+                byte[] nameBytes = new byte[nameLength];
+                mapped.get(nameBytes);
+                byte[] iv = new byte[IV_BYTES];
+                mapped.get(iv);
+                int sealedLength = readLength(mapped);
+                if (sealedLength < 0) {
+                    return false;
+                }
+                byte[] sealed = new byte[sealedLength];
+                mapped.get(sealed);
+
+                // fromBytes zeroes the plaintext array once it is in direct memory
+                Cipher cipher = cipher(Cipher.DECRYPT_MODE, snapshotKey, iv, nameBytes);
+                byte[] plain = cipher.doFinal(sealed);
+                secrets.put(new String(nameBytes, UTF8), SecretValue.fromBytes(plain));
+            }
+            return true;
+        } catch (GeneralSecurityException e) {
+            // a wrong key or a tampered entry; fall back to the vault
+            return false;
+        } catch (RuntimeException e) {
+            // a truncated file runs off the end of the mapping
+            return false;
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+	* Zeroes every cached secret and stops the fetch threads
+	*/
+
+    public void close() {
+        executor.shutdownNow();
+        secrets.close();
+        keys.clear();
+    }
+
+    // the length at the buffer's position, or -1 if it is negative or runs past the end of the buffer
+    private static int readLength(ByteBuffer buffer) {
+        if (buffer.remaining() < 4) {
+            return -1;
+        }
+        int length = buffer.getInt();
+        return length >= 0 && length <= buffer.remaining() ? length : -1;
+    }
+
+    // a 4xx says the secret or the access to it is gone; 408 and 429 only say to try again later
+    private static boolean isRevoked(RestException e) {
+        if (e.response() == null) {
+            return false;
+        }
+        int status = e.response().code();
+        return status >= 400 && status < 500 && status != 408 && status != 429;
+    }
+
+    private Cipher cipher(int mode, byte[] snapshotKey, byte[] iv, byte[] associatedData) throws GeneralSecurityException {
+        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        cipher.init(mode, new SecretKeySpec(snapshotKey, "AES"), new GCMParameterSpec(TAG_BITS, iv));
+        cipher.updateAAD(associatedData);
+        return cipher;
+    }
+
+    private void readManifest(File manifest) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(manifest), UTF8));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] parts = line.split("\\s+", 2);
+                if (parts.length == 2 && parts[0].equalsIgnoreCase("secret")) {
+                    secretNames.add(parts[1]);
+                } else if (parts.length == 2 && parts[0].equalsIgnoreCase("key")) {
+                    keyNames.add(parts[1]);
+                } else {
+                    throw new IOException("Bad manifest line: " + line);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package com.fabrikam.azure.keyvault;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * A secret value held in direct memory as UTF-8 instead of in a heap String.
+ *
+ * The bytes never live on the Java heap except for the short-lived copies handed out by
+ * toBytes() and toChars(), which the caller should clear once done. withValue() reads the
+ * bytes in place without any copy. close() overwrites the memory with zeros, so a closed
+ * value leaves nothing behind in a heap dump or in memory returned to the allocator.
+ *
+ * Values are carved out of slabs shared by all values rather than each getting a direct
+ * buffer of its own, and close() hands the block straight back for reuse, so native memory
+ * does not pile up waiting for the garbage collector. A value that is never closed is
+ * zeroed and its block reused after it has been garbage collected; closing it is still
+ * what keeps the secret's lifetime short.
+ */
+
+public final class SecretValue implements Closeable {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private ByteBuffer buffer;
+    private final int length;
+    private final SecretArena.Lease lease;
+
+    private SecretValue(int length) {
+        this.length = length;
+        this.lease = SecretArena.shared().lease(this, length);
+        this.buffer = lease.block();
+    }
+
+    /**
+	* Reads a value in place. The buffer is read-only and only valid until visit() returns.
+	*/
+
+    public interface Visitor<R> {
+
+        R visit(ByteBuffer utf8) throws Exception;
+    }
+
+    /**
+	* Copies the bytes into direct memory and zeroes the array that was passed in
+	*
+	* @param utf8 UTF-8 encoded secret, cleared by this call
+	*/
+
+    public static SecretValue fromBytes(byte[] utf8) {
+        SecretValue value = new SecretValue(utf8.length);
+        value.buffer.put(utf8);
+        Arrays.fill(utf8, (byte) 0);
+        return value;
+    }
+
+    /**
+	* Encodes the characters into direct memory and zeroes the array that was passed in
+	*
+	* @param chars Secret characters, cleared by this call
+	*/
+
+    public static SecretValue fromChars(char[] chars) {
+        ByteBuffer encoded = UTF8.encode(CharBuffer.wrap(chars));
+        Arrays.fill(chars, '\0');
+        SecretValue value = new SecretValue(encoded.remaining());
+        value.buffer.put(encoded.duplicate());
+        if (encoded.hasArray()) {
+            Arrays.fill(encoded.array(), (byte) 0);
+        }
+        return value;
+    }
+
+    /**
+	* Copies a String into direct memory. The String itself stays on the heap until it is
+	* collected, so prefer fromChars or fromBytes when the value does not already exist as one.
+	*
+	* @param value Secret value
+	*/
+
+    public static SecretValue fromString(String value) {
+        return fromChars(value.toCharArray());
+    }
+
+    public int length() {
+        return length;
+    }
+
+    public synchronized boolean isClosed() {
+        return buffer == null;
+    }
+
+    /**
+	* Returns a heap copy of the UTF-8 bytes; clear it with Arrays.fill once done
+	*/
+
+    public synchronized byte[] toBytes() {
+        byte[] bytes = new byte[length];
+        readable().get(bytes);
+        return bytes;
+    }
+
+    /**
+	* Returns a heap copy of the characters; clear it with Arrays.fill once done
+	*/
+
+    public synchronized char[] toChars() {
+        CharBuffer decoded = UTF8.decode(readable());
+        char[] chars = new char[decoded.remaining()];
+        decoded.get(chars);
+        if (decoded.hasArray()) {
+            Arrays.fill(decoded.array(), '\0');
+        }
+        return chars;
+    }
+
+    /**
+	* Returns the value as a String, for APIs that accept nothing else. The String stays on the
+	* heap until it is collected and cannot be cleared.
+	*/
+
+    public String toUnclearableString() {
+        char[] chars = toChars();
+        try {
+            return new String(chars);
+        } finally {
+            Arrays.fill(chars, '\0');
+        }
+    }
+
+    /**
+	* Passes a read-only view of the value to the visitor without copying it. The value cannot be
+	* closed while the visitor runs, and the view must not be kept once it returns.
+	*
+	* @param visitor Reads the UTF-8 bytes between the view's position and limit
+	*
+    * @return Whatever the visitor returns
+	*/
+
+    public synchronized <R> R withValue(Visitor<R> visitor) throws Exception {
+        return visitor.visit(readable().asReadOnlyBuffer());
+    }
+
+    /**
+	* Returns an independent copy in its own block of direct memory, to be closed by the caller
+	*/
+
+    public synchronized SecretValue copy() {
+        SecretValue copy = new SecretValue(length);
+        copy.buffer.put(readable());
+        return copy;
+    }
+
+    /**
+	* Overwrites the value with zeros; any later read throws IllegalStateException
+	*/
+
+    public synchronized void close() {
+        if (buffer == null) {
+            return;
+        }
+        lease.free();
+        buffer = null;
+    }
+
+    @Override
+    public String toString() {
+        return "SecretValue[" + (isClosed() ? "closed" : "****") + "]";
+    }
+
+    private ByteBuffer readable() {
+        if (buffer == null) {
+            throw new IllegalStateException("Secret value has been closed");
+        }
+        ByteBuffer view = buffer.duplicate();
+        view.clear();
+        view.limit(length);
+        return view;
+    }
+}
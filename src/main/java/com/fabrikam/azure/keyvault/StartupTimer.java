@@ -0,0 +1,60 @@
+package com.fabrikam.azure.keyvault;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Records how long each startup phase took so cold start can be measured run to run.
+ * Phases may be recorded from several threads; the report lists them in completion order.
+ */
+
+public class StartupTimer {
+
+    private final long jvmStartMillis;
+    private final long createdNanos;
+    private final Map<String, Long> phaseMillis = new LinkedHashMap<String, Long>();
+
+    public StartupTimer() {
+        this.jvmStartMillis = ManagementFactory.getRuntimeMXBean().getStartTime();
+        this.createdNanos = System.nanoTime();
+        record("jvm to main", System.currentTimeMillis() - jvmStartMillis);
+    }
+
+    /**
+	* Returns the current time, to be passed back to end() once the phase finishes
+	*/
+
+    public long begin() {
+        return System.nanoTime();
+    }
+
+    /**
+	* Records a phase that started at the given begin() time
+	*
+	* @param phase Name of the phase shown in the report
+	* @param beganNanos Value returned by begin() when the phase started
+	*/
+
+    public void end(String phase, long beganNanos) {
+        record(phase, (System.nanoTime() - beganNanos) / 1000000);
+    }
+
+    private synchronized void record(String phase, long millis) {
+        phaseMillis.put(phase, millis);
+    }
+
+    /**
+	* Prints every recorded phase and the time since the JVM started
+	*/
+
+    public synchronized void report() {
+        StringBuilder info = new StringBuilder("Startup phases:");
+        for (Map.Entry<String, Long> phase : phaseMillis.entrySet()) {
+            info.append("\n\t").append(phase.getKey()).append(": ").append(phase.getValue()).append(" ms");
+        }
+        long sinceMain = (System.nanoTime() - createdNanos) / 1000000;
+        info.append("\n\ttotal since JVM start: ").append(phaseMillis.get("jvm to main") + sinceMain).append(" ms");
+        System.out.println(info.toString());
+    }
+}
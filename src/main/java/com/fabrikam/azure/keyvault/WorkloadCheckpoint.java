@@ -0,0 +1,100 @@
+package com.fabrikam.azure.keyvault;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.TreeSet;
+
+/**
+ * Tracks which lines of a workload file have finished so an interrupted run can resume.
+ *
+ * Lines finish out of order, so the checkpoint keeps a low-water mark below which every line
+ * is done, plus the finished lines above it. The set above the mark never grows past the
+ * number of operations in flight, which keeps the checkpoint small for any file size.
+ *
+ * Finishing a line only updates memory. The owner calls saveIfChanged() on a short timer and
+ * save() once at the end, so at most one interval of progress is lost if the process dies.
+ */
+
+class WorkloadCheckpoint {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final File file;
+    private long mark = 1;
+    private final TreeSet<Long> doneAboveMark = new TreeSet<Long>();
+    private boolean changed;
+
+    /**
+	* Opens a checkpoint, loading the progress of an earlier run if the file exists
+	*
+	* @param file File the checkpoint is kept in, or null to keep progress in memory only
+	*/
+
+    WorkloadCheckpoint(File file) throws IOException {
+        this.file = file;
+        if (file != null && file.exists()) {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF8));
+            try {
+                String line = reader.readLine();
+                if (line != null) {
+                    mark = Long.parseLong(line.trim());
+                }
+                while ((line = reader.readLine()) != null) {
+                    if (!line.trim().isEmpty()) {
+                        doneAboveMark.add(Long.parseLong(line.trim()));
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        }
+    }
+
+    synchronized boolean isDone(long lineNumber) {
+        return lineNumber < mark || doneAboveMark.contains(lineNumber);
+    }
+
+    synchronized void complete(long lineNumber) {
+        doneAboveMark.add(lineNumber);
+        while (doneAboveMark.remove(mark)) {
+            mark++;
+        }
+        changed = true;
+    }
+
+    synchronized void saveIfChanged() throws IOException {
+        if (changed) {
+            save();
+        }
+    }
+
+    // write to a side file and rename it over the checkpoint so a crash never leaves a torn file
+    synchronized void save() throws IOException {
+        changed = false;
+        if (file == null) {
+            return;
+        }
+        File temp = new File(file.getPath() + ".tmp");
+        Writer writer = new OutputStreamWriter(new FileOutputStream(temp), UTF8);
+        try {
+            writer.write(Long.toString(mark));
+            writer.write('\n');
+            for (Long lineNumber : doneAboveMark) {
+                writer.write(lineNumber.toString());
+                writer.write('\n');
+            }
+        } finally {
+            writer.close();
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -0,0 +1,600 @@
+package com.fabrikam.azure.keyvault;
+
+import com.microsoft.azure.batch.BatchClient;
+import com.microsoft.azure.batch.auth.BatchSharedKeyCredentials;
+import com.microsoft.azure.batch.protocol.models.JobAddParameter;
+import com.microsoft.azure.batch.protocol.models.PoolInformation;
+import com.microsoft.azure.batch.protocol.models.TaskAddParameter;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.microsoft.azure.keyvault.webkey.JsonWebKeyType;
+import com.microsoft.azure.management.resources.fluentcore.arm.Region;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Runs the vault and Batch operations listed in a workload file.
+ *
+ * The file is either JSON lines, one object per operation, or CSV with a header row naming the
+ * same fields. Every operation has an "op" field; the other fields depend on the operation:
+ *
+ *   createSecret, updateSecret, showSecret, deleteSecret   vault, name, value
+ *   createKey, updateKey, showKey, deleteKey               vault, name, keyType
+ *   createVault, deleteVault                               name, resourceGroup, region / vaultId
+ *   createJob, addTask, deleteJob                          jobId, poolId / commandLine, displayName, taskId
+ *
+ * The file is read one line at a time and at most maxInFlight operations are queued or running,
+ * so memory stays flat however long the file is. Operations on the same secret, key or vault
+ * run in file order, and an optional "lane" field groups any other operations that must. The
+ * tasks of a job run concurrently once the createJob before them has finished, and a deleteJob
+ * waits for everything queued on the job before it. An operation whose predecessor fails is
+ * skipped. Lines that fail are copied to a .failed file next to the checkpoint, which can be
+ * run on its own. The checkpoint is saved every second while the run goes on, and once more if
+ * the JVM shuts down before the run ends.
+ */
+
+public class WorkloadRunner {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int LATENCY_BUCKETS_MILLIS = 60000;
+    private static final long CHECKPOINT_INTERVAL_MILLIS = 1000;
+
+    private final ClientBootstrap clients;
+    private final int maxInFlight;
+    private final ExecutorService executor;
+    private final Semaphore inFlight;
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final Object dependencies = new Object();
+    private final Map<String, Operation> laneTails = new HashMap<String, Operation>();
+    private final Map<String, JobLane> jobLanes = new HashMap<String, JobLane>();
+    private final ConcurrentMap<String, AtomicLong> opCounts = new ConcurrentHashMap<String, AtomicLong>();
+    private final AtomicLongArray latencyMillis = new AtomicLongArray(LATENCY_BUCKETS_MILLIS + 1);
+    private final AtomicLong succeeded = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicBoolean firstDataPlaneCall = new AtomicBoolean();
+    private BatchClient batchClient;
+    private boolean managementWarmed;
+    private boolean dataPlaneWarmed;
+
+    /**
+	* @param clients ClientBootstrap the operations take their clients from
+	* @param threads Number of operations that run at the same time
+	* @param maxInFlight Number of operations that may be read ahead of the ones finishing
+	*/
+
+    public WorkloadRunner(ClientBootstrap clients, int threads, int maxInFlight) {
+        this.clients = clients;
+        this.maxInFlight = maxInFlight;
+        this.executor = Executors.newFixedThreadPool(threads);
+        this.inFlight = new Semaphore(maxInFlight);
+    }
+
+    /**
+	* Runs every operation of a workload file that an earlier run has not already finished
+	*
+	* @param workload Workload file, JSON lines or CSV by its .csv extension
+	* @param checkpointFile File progress is kept in between runs, or null to always start over
+	*
+    * @return Number of operations that failed
+	*/
+
+    public long run(File workload, File checkpointFile) throws Exception {
+        boolean csv = workload.getName().toLowerCase().endsWith(".csv");
+        final WorkloadCheckpoint checkpoint = new WorkloadCheckpoint(checkpointFile);
+        File failedFile = new File((checkpointFile != null ? checkpointFile.getPath() : workload.getPath())
+                + ".failed" + (csv ? ".csv" : ""));
+        Writer failures = new OutputStreamWriter(new FileOutputStream(failedFile, checkpointFile != null && failedFile.exists()), UTF8);
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(workload), UTF8));
+
+        ScheduledExecutorService checkpointSaver = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "workload-checkpoint");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        checkpointSaver.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    checkpoint.saveIfChanged();
+                } catch (IOException e) {
+                    System.out.println("Could not save checkpoint: " + e.getMessage());
+                }
+            }
+        }, CHECKPOINT_INTERVAL_MILLIS, CHECKPOINT_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        // a run stopped with Ctrl-C or a kill still records what finished since the last timed save
+        Thread saveOnExit = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    checkpoint.save();
+                } catch (IOException e) {
+                    System.out.println("Could not save checkpoint: " + e.getMessage());
+                }
+            }
+        }, "workload-checkpoint-exit");
+        Runtime.getRuntime().addShutdownHook(saveOnExit);
+
+        long started = System.nanoTime();
+        try {
+            String[] header = null;
+            if (csv) {
+                String headerLine = reader.readLine();
+                header = headerLine != null ? splitCsv(headerLine) : new String[0];
+                if (failedFile.length() == 0) {
+                    failures.write(headerLine + "\n");
+                }
+            }
+
+            String line;
+            long lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (checkpoint.isDone(lineNumber)) {
+                    continue;
+                }
+                if (line.trim().isEmpty()) {
+                    checkpoint.complete(lineNumber);
+                    continue;
+                }
+                Map<String, String> fields;
+                try {
+                    fields = csv ? parseCsv(header, line) : parseJson(line);
+                    if (fields.get("op") == null) {
+                        throw new IOException("Missing field: op");
+                    }
+                } catch (IOException e) {
+                    failed.incrementAndGet();
+                    recordFailure(failures, lineNumber, line, e);
+                    checkpoint.complete(lineNumber);
+                    continue;
+                }
+                inFlight.acquire();
+                submit(lineNumber, line, fields, checkpoint, failures);
+            }
+
+            // every permit back means every operation has finished
+            inFlight.acquire(maxInFlight);
+            inFlight.release(maxInFlight);
+        } finally {
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            checkpointSaver.shutdownNow();
+            checkpoint.save();
+            try {
+                Runtime.getRuntime().removeShutdownHook(saveOnExit);
+            } catch (IllegalStateException e) {
+                // already shutting down; the hook saves again, which is harmless
+            }
+            reader.close();
+            failures.close();
+        }
+
+        printStats(System.nanoTime() - started);
+        return failed.get();
+    }
+
+    private void submit(long lineNumber, String line, Map<String, String> fields,
+            WorkloadCheckpoint checkpoint, Writer failures) {
+        String op = fields.get("op");
+        warmUp(op);
+        Operation operation = new Operation(lineNumber, line, op, fields, checkpoint, failures);
+
+        // an operation waits only on the earlier ones it depends on, and is handed to the executor by
+        // whichever of them finishes last, so no worker thread ever blocks waiting for another
+        synchronized (dependencies) {
+            String lane = laneOf(op, fields);
+            String jobId = fields.get("jobId");
+            if (lane != null) {
+                operation.dependOn(laneTails.put(lane, operation));
+            } else if (jobId != null && isJobOp(op)) {
+                JobLane job = jobLanes.get(jobId);
+                if (job == null) {
+                    job = new JobLane();
+                    jobLanes.put(jobId, job);
+                }
+                // tasks of a job only wait for the job to exist; creating or deleting the job waits for everything
+                // queued on it before
+                operation.dependOn(job.lastJobOp);
+                if ("addTask".equals(op)) {
+                    job.tasksSinceJobOp.add(operation);
+                } else {
+                    for (Operation task : job.tasksSinceJobOp) {
+                        operation.dependOn(task);
+                    }
+                    job.tasksSinceJobOp.clear();
+                    job.lastJobOp = operation;
+                }
+            }
+        }
+        operation.ready();
+    }
+
+    // package-private so tests can run the scheduling without calling Azure
+    void dispatch(String op, Map<String, String> f) throws Exception {
+        if ("createSecret".equals(op)) {
+            clients.keyVaultHandler().createSecret(require(f, "vault"), require(f, "name"), require(f, "value"));
+        } else if ("updateSecret".equals(op)) {
+            clients.keyVaultHandler().updateSecret(require(f, "vault"), require(f, "name"));
+        } else if ("showSecret".equals(op)) {
+            clients.keyVaultHandler().showSecret(require(f, "vault"), require(f, "name"));
+        } else if ("deleteSecret".equals(op)) {
+            clients.keyVaultHandler().deleteSecret(require(f, "vault"), require(f, "name"));
+        } else if ("createKey".equals(op)) {
+            clients.keyVaultHandler().createKey(require(f, "vault"), require(f, "name"), keyType(f.get("keyType")));
+        } else if ("updateKey".equals(op)) {
+            clients.keyVaultHandler().updateKey(require(f, "vault"), require(f, "name"));
+        } else if ("showKey".equals(op)) {
+            clients.keyVaultHandler().showKey(require(f, "vault"), require(f, "name"));
+        } else if ("deleteKey".equals(op)) {
+            clients.keyVaultHandler().deleteKey(require(f, "vault"), require(f, "name"));
+        } else if ("createVault".equals(op)) {
+            String region = f.get("region");
+            clients.keyVaultManager().createKeyVault(require(f, "name"), require(f, "resourceGroup"),
+                    region != null ? Region.fromName(region) : Region.US_WEST);
+        } else if ("deleteVault".equals(op)) {
+            clients.keyVaultManager().deleteVault(require(f, "vaultId"));
+        } else if ("createJob".equals(op)) {
+            batchClient().jobOperations().createJob(new JobAddParameter()
+                    .withId(require(f, "jobId"))
+                    .withPoolInfo(new PoolInformation().withPoolId(require(f, "poolId"))));
+        } else if ("addTask".equals(op)) {
+            batchClient().taskOperations().createTask(require(f, "jobId"), new TaskAddParameter()
+                    .withId(require(f, "taskId"))
+                    .withCommandLine(require(f, "commandLine"))
+                    .withDisplayName(f.get("displayName")));
+        } else if ("deleteJob".equals(op)) {
+            batchClient().jobOperations().deleteJob(require(f, "jobId"));
+        } else {
+            throw new IllegalArgumentException("Unknown operation: " + op);
+        }
+    }
+
+    // operations on the same secret, key or vault must run in order; jobs are handled by submit(), everything
+    // else runs freely
+    private static String laneOf(String op, Map<String, String> f) {
+        if (f.get("lane") != null) {
+            return "lane:" + f.get("lane");
+        }
+        if (op == null) {
+            return null;
+        }
+        if (op.endsWith("Secret")) {
+            return "secret:" + f.get("vault") + "/" + f.get("name");
+        }
+        if (op.endsWith("Key")) {
+            return "key:" + f.get("vault") + "/" + f.get("name");
+        }
+        if (op.equals("createVault")) {
+            return "vault:" + f.get("resourceGroup") + "/" + f.get("name");
+        }
+        if (op.equals("deleteVault")) {
+            String vaultId = String.valueOf(f.get("vaultId"));
+            int groups = vaultId.toLowerCase().indexOf("/resourcegroups/");
+            int providers = vaultId.toLowerCase().indexOf("/providers/");
+            if (groups >= 0 && providers > groups) {
+                String group = vaultId.substring(groups + "/resourcegroups/".length(), providers);
+                return "vault:" + group + "/" + vaultId.substring(vaultId.lastIndexOf('/') + 1);
+            }
+            return "vault:" + vaultId;
+        }
+        return null;
+    }
+
+    private static boolean isJobOp(String op) {
+        return op != null && (op.endsWith("Job") || op.equals("addTask"));
+    }
+
+    // start building a plane as soon as the reader sees the first operation that needs it
+    private void warmUp(String op) {
+        if (op == null) {
+            return;
+        }
+        boolean management = !managementWarmed && op.endsWith("Vault");
+        boolean dataPlane = !dataPlaneWarmed && isDataPlane(op);
+        if (management || dataPlane) {
+            clients.warmUp(management, dataPlane);
+            managementWarmed |= management;
+            dataPlaneWarmed |= dataPlane;
+        }
+    }
+
+    private static boolean isDataPlane(String op) {
+        return op != null && (op.endsWith("Secret") || op.endsWith("Key"));
+    }
+
+    // BatchClient is called directly rather than through BatchOperationsHelper, which prints and swallows errors
+    private synchronized BatchClient batchClient() {
+        if (batchClient == null) {
+            batchClient = BatchClient.open(new BatchSharedKeyCredentials(requireEnv("AZURE_BATCH_URL"),
+                    requireEnv("AZURE_BATCH_ACCOUNT"), requireEnv("AZURE_BATCH_KEY")));
+        }
+        return batchClient;
+    }
+
+    private void countOp(String op) {
+        String name = String.valueOf(op);
+        AtomicLong count = opCounts.get(name);
+        if (count == null) {
+            AtomicLong created = new AtomicLong();
+            count = opCounts.putIfAbsent(name, created);
+            if (count == null) {
+                count = created;
+            }
+        }
+        count.incrementAndGet();
+    }
+
+    private void recordFailure(Writer failures, long lineNumber, String line, Exception e) {
+        System.out.println("Line " + lineNumber + " failed: " + e.getMessage());
+        synchronized (failures) {
+            try {
+                failures.write(line);
+                failures.write('\n');
+                failures.flush();
+            } catch (IOException io) {
+                System.out.println("Could not record failed line " + lineNumber + ": " + io.getMessage());
+            }
+        }
+    }
+
+    private void printStats(long elapsedNanos) {
+        long total = succeeded.get() + failed.get();
+        double seconds = elapsedNanos / 1e9;
+        StringBuilder info = new StringBuilder("Workload finished:")
+                .append("\n\tOperations: ").append(total)
+                .append(" (").append(succeeded.get()).append(" succeeded, ").append(failed.get()).append(" failed)")
+                .append("\n\tElapsed: ").append(String.format("%.1f s", seconds))
+                .append("\n\tThroughput: ").append(String.format("%.1f ops/s", seconds > 0 ? total / seconds : 0))
+                .append("\n\tLatency p50: ").append(percentile(total, 0.50)).append(" ms")
+                .append(", p95: ").append(percentile(total, 0.95)).append(" ms")
+                .append(", p99: ").append(percentile(total, 0.99)).append(" ms")
+                .append(", max: ").append(percentile(total, 1.0)).append(" ms");
+        for (Map.Entry<String, AtomicLong> op : opCounts.entrySet()) {
+            info.append("\n\t\t").append(op.getKey()).append(": ").append(op.getValue().get());
+        }
+        System.out.println(info.toString());
+    }
+
+    private long percentile(long total, double fraction) {
+        long target = Math.max(1, (long) Math.ceil(total * fraction));
+        long seen = 0;
+        for (int millis = 0; millis <= LATENCY_BUCKETS_MILLIS; millis++) {
+            seen += latencyMillis.get(millis);
+            if (seen >= target) {
+                return millis;
+            }
+        }
+        return 0;
+    }
+
+    private Map<String, String> parseJson(String line) throws IOException {
+        Map<String, String> fields = new LinkedHashMap<String, String>();
+        JsonNode node = mapper.readTree(line);
+        Iterator<Map.Entry<String, JsonNode>> entries = node.fields();
+        while (entries.hasNext()) {
+            Map.Entry<String, JsonNode> entry = entries.next();
+            if (!entry.getValue().isNull()) {
+                fields.put(entry.getKey(), entry.getValue().asText());
+            }
+        }
+        return fields;
+    }
+
+    private static Map<String, String> parseCsv(String[] header, String line) {
+        Map<String, String> fields = new LinkedHashMap<String, String>();
+        String[] values = splitCsv(line);
+        for (int i = 0; i < header.length && i < values.length; i++) {
+            if (!values[i].isEmpty()) {
+                fields.put(header[i].trim(), values[i]);
+            }
+        }
+        return fields;
+    }
+
+    // comma separated values, with double quotes around values that contain commas or quotes
+    static String[] splitCsv(String line) {
+        List<String> values = new ArrayList<String>();
+        StringBuilder value = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    value.append('"');
+                    i++;
+                } else if (c == '"') {
+                    quoted = false;
+                } else {
+                    value.append(c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                values.add(value.toString());
+                value.setLength(0);
+            } else {
+                value.append(c);
+            }
+        }
+        values.add(value.toString());
+        return values.toArray(new String[values.size()]);
+    }
+
+    private static JsonWebKeyType keyType(String name) {
+        if (name == null || name.equalsIgnoreCase("RSA")) {
+            return JsonWebKeyType.RSA;
+        }
+        if (name.equalsIgnoreCase("RSA-HSM")) {
+            return JsonWebKeyType.RSA_HSM;
+        }
+        if (name.equalsIgnoreCase("EC")) {
+            return JsonWebKeyType.EC;
+        }
+        if (name.equalsIgnoreCase("oct")) {
+            return JsonWebKeyType.OCT;
+        }
+        throw new IllegalArgumentException("Unknown key type: " + name);
+    }
+
+    private static String require(Map<String, String> fields, String name) {
+        String value = fields.get(name);
+        if (value == null) {
+            throw new IllegalArgumentException("Missing field: " + name);
+        }
+        return value;
+    }
+
+    private static String requireEnv(String name) {
+        String value = System.getenv(name);
+        if (value == null) {
+            throw new IllegalStateException("Environment variable " + name + " is required for Batch operations");
+        }
+        return value;
+    }
+
+    private static final class JobLane {
+
+        Operation lastJobOp;
+        final List<Operation> tasksSinceJobOp = new ArrayList<Operation>();
+
+        boolean isIdle() {
+            return (lastJobOp == null || lastJobOp.finished) && tasksSinceJobOp.isEmpty();
+        }
+    }
+
+    // one line of the workload. All dependency state is guarded by the runner's dependencies lock.
+    private final class Operation implements Runnable {
+
+        final long lineNumber;
+        final String line;
+        final String op;
+        final Map<String, String> fields;
+        final WorkloadCheckpoint checkpoint;
+        final Writer failures;
+        final List<Operation> dependents = new ArrayList<Operation>();
+        int waitingOn = 1;
+        boolean finished;
+        boolean passed;
+        Operation failedDependency;
+
+        Operation(long lineNumber, String line, String op, Map<String, String> fields,
+                WorkloadCheckpoint checkpoint, Writer failures) {
+            this.lineNumber = lineNumber;
+            this.line = line;
+            this.op = op;
+            this.fields = fields;
+            this.checkpoint = checkpoint;
+            this.failures = failures;
+        }
+
+        void dependOn(Operation dependency) {
+            if (dependency == null) {
+                return;
+            }
+            if (!dependency.finished) {
+                dependency.dependents.add(this);
+                waitingOn++;
+            } else if (!dependency.passed && failedDependency == null) {
+                failedDependency = dependency;
+            }
+        }
+
+        // drops the hold taken at construction; runs the operation once nothing else holds it back
+        void ready() {
+            boolean runnable;
+            synchronized (dependencies) {
+                runnable = --waitingOn == 0;
+            }
+            if (runnable) {
+                executor.execute(this);
+            }
+        }
+
+        public void run() {
+            long began = System.nanoTime();
+            boolean ok = false;
+            try {
+                if (failedDependency != null) {
+                    throw new IllegalStateException("Skipped because line " + failedDependency.lineNumber + " failed");
+                }
+                boolean timeFirstCall = isDataPlane(op) && firstDataPlaneCall.compareAndSet(false, true);
+                long callBegan = clients.timer().begin();
+                dispatch(op, fields);
+                if (timeFirstCall) {
+                    clients.timer().end("first data plane call", callBegan);
+                }
+                ok = true;
+                succeeded.incrementAndGet();
+            } catch (Exception e) {
+                failed.incrementAndGet();
+                recordFailure(failures, lineNumber, line, e);
+            } finally {
+                long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - began);
+                latencyMillis.incrementAndGet((int) Math.min(millis, LATENCY_BUCKETS_MILLIS));
+                countOp(op);
+                checkpoint.complete(lineNumber);
+                finish(ok);
+                inFlight.release();
+            }
+        }
+
+        private void finish(boolean ok) {
+            List<Operation> unblocked = new ArrayList<Operation>();
+            synchronized (dependencies) {
+                finished = true;
+                passed = ok;
+                for (Operation dependent : dependents) {
+                    if (!ok && dependent.failedDependency == null) {
+                        dependent.failedDependency = this;
+                    }
+                    if (--dependent.waitingOn == 0) {
+                        unblocked.add(dependent);
+                    }
+                }
+                dependents.clear();
+
+                String lane = laneOf(op, fields);
+                if (lane != null) {
+                    if (laneTails.get(lane) == this) {
+                        laneTails.remove(lane);
+                    }
+                } else if (fields.get("jobId") != null && isJobOp(op)) {
+                    JobLane job = jobLanes.get(fields.get("jobId"));
+                    if (job != null) {
+                        job.tasksSinceJobOp.remove(this);
+                        if (job.isIdle()) {
+                            jobLanes.remove(fields.get("jobId"));
+                        }
+                    }
+                }
+            }
+            for (Operation dependent : unblocked) {
+                executor.execute(dependent);
+            }
+        }
+    }
+}
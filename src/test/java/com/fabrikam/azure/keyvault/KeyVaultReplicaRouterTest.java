@@ -0,0 +1,146 @@
+package com.fabrikam.azure.keyvault;
+
+import com.microsoft.azure.keyvault.models.KeyBundle;
+import com.microsoft.azure.keyvault.models.SecretBundle;
+import com.microsoft.rest.RestException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import junit.framework.TestCase;
+import okhttp3.ResponseBody;
+import retrofit2.Response;
+
+/**
+ * Unit tests for KeyVaultReplicaRouter, run against a KeyVaultHandler that answers from memory.
+ */
+
+public class KeyVaultReplicaRouterTest extends TestCase {
+
+    private static final String PRIMARY = "https://primary.vault.azure.net";
+    private static final String SECONDARY = "https://secondary.vault.azure.net";
+
+    private StubHandler kvh;
+    private KeyVaultReplicaRouter router;
+
+    protected void setUp() {
+        kvh = new StubHandler();
+        router = new KeyVaultReplicaRouter(kvh, Arrays.asList(PRIMARY, SECONDARY));
+    }
+
+    protected void tearDown() {
+        router.close();
+    }
+
+    public void testHedgesToNextReplicaWhenPrimaryIsSlow() throws Exception {
+        kvh.delay(PRIMARY, 2000);
+
+        long start = System.currentTimeMillis();
+        SecretBundle secret = router.showSecret("db-password");
+
+        assertEquals(SECONDARY, secret.value());
+        assertTrue(System.currentTimeMillis() - start < 1000);
+        // the cancelled primary counts as slow, so the next read starts on the replica that answered
+        assertEquals(Arrays.asList(SECONDARY, PRIMARY), router.rankedVaultURLs());
+    }
+
+    public void testFailsOverAndEjectsOnServerError() throws Exception {
+        kvh.fail(PRIMARY, 503);
+
+        SecretBundle secret = router.showSecret("db-password");
+
+        assertEquals(SECONDARY, secret.value());
+        assertEquals(Arrays.asList(SECONDARY, PRIMARY), router.rankedVaultURLs());
+    }
+
+    public void testTriesRemainingReplicasOnNotFoundWithoutEjecting() throws Exception {
+        kvh.fail(PRIMARY, 404);
+        kvh.delay(SECONDARY, 20);
+
+        SecretBundle secret = router.showSecret("new-secret");
+
+        assertEquals(SECONDARY, secret.value());
+        // the primary answered quickly and is still healthy, so it stays ahead of the slower replica
+        assertEquals(Arrays.asList(PRIMARY, SECONDARY), router.rankedVaultURLs());
+    }
+
+    public void testNotFoundOnEveryReplicaIsThrown() throws Exception {
+        kvh.fail(PRIMARY, 404);
+        kvh.fail(SECONDARY, 404);
+
+        try {
+            router.showSecret("missing-secret");
+            fail("Expected the 404 to be thrown");
+        } catch (RestException e) {
+            assertEquals(404, e.response().code());
+        }
+        assertEquals(1, kvh.calls(PRIMARY));
+        assertEquals(1, kvh.calls(SECONDARY));
+    }
+
+    public void testForbiddenIsNotRetried() throws Exception {
+        kvh.fail(PRIMARY, 403);
+
+        try {
+            router.showKey("signing-key");
+            fail("Expected the 403 to be thrown");
+        } catch (RestException e) {
+            assertEquals(403, e.response().code());
+        }
+        assertEquals(0, kvh.calls(SECONDARY));
+    }
+
+    private static final class StubHandler extends KeyVaultHandler {
+
+        private final Map<String, Long> delays = new HashMap<String, Long>();
+        private final Map<String, Integer> failures = new HashMap<String, Integer>();
+        private final Map<String, AtomicInteger> calls = new HashMap<String, AtomicInteger>();
+
+        StubHandler() {
+            super(null);
+            calls.put(PRIMARY, new AtomicInteger());
+            calls.put(SECONDARY, new AtomicInteger());
+        }
+
+        void delay(String vaultURL, long millis) {
+            delays.put(vaultURL, millis);
+        }
+
+        void fail(String vaultURL, int status) {
+            failures.put(vaultURL, status);
+        }
+
+        int calls(String vaultURL) {
+            return calls.get(vaultURL).get();
+        }
+
+        public SecretBundle showSecret(String vaultURL, String secretName) throws IOException {
+            answer(vaultURL);
+            return new SecretBundle().withValue(vaultURL);
+        }
+
+        public KeyBundle showKey(String vaultURL, String keyName) throws IOException {
+            answer(vaultURL);
+            return new KeyBundle();
+        }
+
+        private void answer(String vaultURL) throws IOException {
+            calls.get(vaultURL).incrementAndGet();
+            Long delay = delays.get(vaultURL);
+            if (delay != null) {
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+            }
+            Integer status = failures.get(vaultURL);
+            if (status != null) {
+                throw new RestException("Status " + status,
+                        Response.<ResponseBody>error(status, ResponseBody.create(null, "")));
+            }
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package com.fabrikam.azure.keyvault;
+
+import java.nio.ByteBuffer;
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for SecretArena.
+ */
+
+public class SecretArenaTest extends TestCase {
+
+    private final SecretArena arena = SecretArena.shared();
+
+    public void testReleasedBlockIsReusedForTheSameSizeClass() {
+        ByteBuffer block = arena.allocate(20);
+        assertEquals(32, block.capacity());
+        arena.release(block);
+
+        assertSame(block, arena.allocate(30));
+    }
+
+    public void testBlocksDoNotOverlap() {
+        ByteBuffer first = arena.allocate(16);
+        ByteBuffer second = arena.allocate(16);
+
+        for (int i = 0; i < 16; i++) {
+            first.put(i, (byte) 0x5a);
+        }
+
+        for (int i = 0; i < 16; i++) {
+            assertEquals(0, second.get(i));
+        }
+        arena.release(first);
+        arena.release(second);
+    }
+
+    public void testLargeValueGetsItsOwnBuffer() {
+        ByteBuffer block = arena.allocate(100000);
+        assertEquals(100000, block.capacity());
+        arena.release(block);
+
+        assertNotSame(block, arena.allocate(100000));
+    }
+
+    public void testFreedLeaseIsZeroedAndReused() {
+        Object owner = new Object();
+        SecretArena.Lease lease = arena.lease(owner, 5);
+        ByteBuffer block = lease.block();
+        block.put(new byte[] { 1, 2, 3, 4, 5 });
+
+        lease.free();
+
+        assertNull(lease.block());
+        for (int i = 0; i < 5; i++) {
+            assertEquals(0, block.get(i));
+        }
+        assertSame(block, arena.allocate(5));
+    }
+
+    public void testAbandonedOwnerIsZeroedAfterCollection() throws Exception {
+        SecretArena.Lease lease = arena.lease(new Object(), 8);
+        ByteBuffer block = lease.block();
+        block.put(new byte[] { 9, 9, 9, 9, 9, 9, 9, 9 });
+
+        for (int i = 0; i < 50 && lease.block() != null; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+
+        assertNull("The abandoned lease was never freed", lease.block());
+        for (int i = 0; i < 8; i++) {
+            assertEquals(0, block.get(i));
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package com.fabrikam.azure.keyvault;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for SecretCache and the SecretValues it holds.
+ */
+
+public class SecretCacheTest extends TestCase {
+
+    private SecretCache cache;
+
+    protected void setUp() {
+        cache = new SecretCache(2);
+    }
+
+    protected void tearDown() {
+        cache.close();
+    }
+
+    public void testEvictionZeroesTheValue() throws Exception {
+        SecretValue evicted = SecretValue.fromString("hunter2");
+        cache.put("a", evicted);
+        ByteBuffer memory = cache.withValue("a", new SecretValue.Visitor<ByteBuffer>() {
+            public ByteBuffer visit(ByteBuffer utf8) {
+                // kept past the visitor only so the test can look at the memory afterwards
+                return utf8.duplicate();
+            }
+        });
+
+        cache.put("b", SecretValue.fromString("b"));
+        cache.put("c", SecretValue.fromString("c"));
+
+        assertFalse(cache.contains("a"));
+        assertTrue(evicted.isClosed());
+        for (int i = 0; i < "hunter2".length(); i++) {
+            assertEquals(0, memory.get(i));
+        }
+    }
+
+    public void testLeastRecentlyReadIsEvictedFirst() throws Exception {
+        cache.put("a", SecretValue.fromString("a"));
+        cache.put("b", SecretValue.fromString("b"));
+        cache.withValue("a", new SecretValue.Visitor<Void>() {
+            public Void visit(ByteBuffer utf8) {
+                return null;
+            }
+        });
+
+        cache.put("c", SecretValue.fromString("c"));
+
+        assertEquals(Arrays.asList("a", "c"), cache.names());
+    }
+
+    public void testReplacingAValueClosesThePreviousOne() {
+        SecretValue first = SecretValue.fromString("first");
+        cache.put("a", first);
+
+        cache.put("a", SecretValue.fromString("second"));
+
+        assertTrue(first.isClosed());
+        assertEquals(1, cache.size());
+    }
+
+    public void testGetReturnsACopyTheCallerOwns() {
+        cache.put("a", SecretValue.fromString("value"));
+
+        SecretValue copy = cache.get("a");
+        assertEquals("value", copy.toUnclearableString());
+        copy.close();
+
+        SecretValue again = cache.get("a");
+        assertEquals("value", again.toUnclearableString());
+        again.close();
+        assertNull(cache.get("missing"));
+    }
+
+    public void testClosedValueCannotBeRead() {
+        SecretValue value = SecretValue.fromBytes("value".getBytes());
+        value.close();
+
+        try {
+            value.toBytes();
+            fail("Expected a closed value to refuse reads");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    public void testFromBytesClearsTheInput() {
+        byte[] input = "value".getBytes();
+        SecretValue value = SecretValue.fromBytes(input);
+
+        assertTrue(Arrays.equals(new byte[5], input));
+        assertTrue(Arrays.equals("value".getBytes(), value.toBytes()));
+        value.close();
+    }
+}
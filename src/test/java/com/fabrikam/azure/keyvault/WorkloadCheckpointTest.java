@@ -0,0 +1,86 @@
+package com.fabrikam.azure.keyvault;
+
+import java.io.File;
+import java.nio.file.Files;
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for WorkloadCheckpoint.
+ */
+
+public class WorkloadCheckpointTest extends TestCase {
+
+    private File file;
+
+    protected void setUp() throws Exception {
+        file = File.createTempFile("workload", ".checkpoint");
+        file.delete();
+    }
+
+    protected void tearDown() {
+        file.delete();
+    }
+
+    public void testMarkAdvancesOnlyOverContiguousLines() throws Exception {
+        WorkloadCheckpoint checkpoint = new WorkloadCheckpoint(file);
+
+        checkpoint.complete(1);
+        checkpoint.complete(3);
+        checkpoint.complete(4);
+
+        assertTrue(checkpoint.isDone(1));
+        assertFalse(checkpoint.isDone(2));
+        assertTrue(checkpoint.isDone(3));
+        assertTrue(checkpoint.isDone(4));
+        assertFalse(checkpoint.isDone(5));
+
+        checkpoint.complete(2);
+        checkpoint.save();
+        assertEquals("5\n", read(file));
+    }
+
+    public void testResumesFromSavedProgress() throws Exception {
+        WorkloadCheckpoint checkpoint = new WorkloadCheckpoint(file);
+        checkpoint.complete(1);
+        checkpoint.complete(2);
+        checkpoint.complete(5);
+        checkpoint.save();
+
+        WorkloadCheckpoint resumed = new WorkloadCheckpoint(file);
+
+        assertTrue(resumed.isDone(1));
+        assertTrue(resumed.isDone(2));
+        assertFalse(resumed.isDone(3));
+        assertFalse(resumed.isDone(4));
+        assertTrue(resumed.isDone(5));
+        assertFalse(resumed.isDone(6));
+    }
+
+    public void testSaveIfChangedWritesOnlyNewProgress() throws Exception {
+        WorkloadCheckpoint checkpoint = new WorkloadCheckpoint(file);
+
+        checkpoint.saveIfChanged();
+        assertFalse(file.exists());
+
+        checkpoint.complete(1);
+        checkpoint.saveIfChanged();
+        assertEquals("2\n", read(file));
+
+        file.delete();
+        checkpoint.saveIfChanged();
+        assertFalse(file.exists());
+    }
+
+    public void testInMemoryCheckpointNeverWrites() throws Exception {
+        WorkloadCheckpoint checkpoint = new WorkloadCheckpoint(null);
+
+        checkpoint.complete(1);
+        checkpoint.save();
+
+        assertTrue(checkpoint.isDone(1));
+    }
+
+    private static String read(File file) throws Exception {
+        return new String(Files.readAllBytes(file.toPath()), "UTF-8");
+    }
+}
@@ -0,0 +1,159 @@
+package com.fabrikam.azure.keyvault;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for the scheduling done by WorkloadRunner. The operations are recorded instead of
+ * being sent to Azure.
+ */
+
+public class WorkloadRunnerTest extends TestCase {
+
+    private File workload;
+    private File failedFile;
+
+    protected void setUp() throws Exception {
+        workload = File.createTempFile("workload", ".jsonl");
+        failedFile = new File(workload.getPath() + ".failed");
+    }
+
+    protected void tearDown() {
+        workload.delete();
+        failedFile.delete();
+    }
+
+    public void testSplitCsvHandlesQuotedValues() {
+        assertEquals(Arrays.asList("createSecret", "a,b", "say \"hi\"", ""),
+                Arrays.asList(WorkloadRunner.splitCsv("createSecret,\"a,b\",\"say \"\"hi\"\"\",")));
+        assertEquals(Arrays.asList(""), Arrays.asList(WorkloadRunner.splitCsv("")));
+    }
+
+    public void testLaneRunsInFileOrder() throws Exception {
+        List<String> lines = new ArrayList<String>();
+        for (int i = 0; i < 20; i++) {
+            // earlier lines take longer, so anything run out of order would finish first
+            lines.add("{\"op\":\"step\",\"lane\":\"a\",\"n\":\"" + i + "\",\"sleep\":\"" + (20 - i) + "\"}");
+        }
+        write(lines);
+        RecordingRunner runner = new RecordingRunner();
+
+        assertEquals(0, runner.run(workload, null));
+
+        List<String> expected = new ArrayList<String>();
+        for (int i = 0; i < 20; i++) {
+            expected.add("begin " + i);
+            expected.add("end " + i);
+        }
+        assertEquals(expected, runner.events);
+    }
+
+    public void testFailedOperationSkipsTheRestOfItsLane() throws Exception {
+        write(Arrays.asList(
+                "{\"op\":\"step\",\"lane\":\"a\",\"n\":\"1\",\"fail\":\"true\"}",
+                "{\"op\":\"step\",\"lane\":\"a\",\"n\":\"2\"}",
+                "{\"op\":\"step\",\"lane\":\"b\",\"n\":\"3\"}"));
+        RecordingRunner runner = new RecordingRunner();
+
+        assertEquals(2, runner.run(workload, null));
+
+        assertTrue(runner.events.contains("begin 1"));
+        assertFalse(runner.events.contains("begin 2"));
+        assertTrue(runner.events.contains("end 3"));
+    }
+
+    public void testTasksWaitForTheirJobAndDeleteWaitsForTheTasks() throws Exception {
+        write(Arrays.asList(
+                "{\"op\":\"createJob\",\"jobId\":\"j1\",\"n\":\"create\",\"sleep\":\"50\"}",
+                "{\"op\":\"addTask\",\"jobId\":\"j1\",\"n\":\"t1\",\"sleep\":\"20\"}",
+                "{\"op\":\"addTask\",\"jobId\":\"j1\",\"n\":\"t2\",\"sleep\":\"20\"}",
+                "{\"op\":\"addTask\",\"jobId\":\"j1\",\"n\":\"t3\",\"sleep\":\"20\"}",
+                "{\"op\":\"deleteJob\",\"jobId\":\"j1\",\"n\":\"delete\"}"));
+        RecordingRunner runner = new RecordingRunner();
+
+        assertEquals(0, runner.run(workload, null));
+
+        int created = runner.events.indexOf("end create");
+        int deleting = runner.events.indexOf("begin delete");
+        for (String task : Arrays.asList("t1", "t2", "t3")) {
+            assertTrue(created < runner.events.indexOf("begin " + task));
+            assertTrue(runner.events.indexOf("end " + task) < deleting);
+        }
+    }
+
+    public void testLineWithoutOpIsRecordedAsFailed() throws Exception {
+        write(Arrays.asList(
+                "{\"jobId\":\"j1\"}",
+                "{\"op\":\"step\",\"n\":\"1\"}"));
+        RecordingRunner runner = new RecordingRunner();
+
+        assertEquals(1, runner.run(workload, null));
+
+        assertEquals(Arrays.asList("begin 1", "end 1"), runner.events);
+        assertEquals("{\"jobId\":\"j1\"}\n", new String(Files.readAllBytes(failedFile.toPath()), "UTF-8"));
+    }
+
+    public void testResumeSkipsFinishedLines() throws Exception {
+        File checkpoint = File.createTempFile("workload", ".checkpoint");
+        File checkpointFailures = new File(checkpoint.getPath() + ".failed");
+        try {
+            Writer writer = new OutputStreamWriter(new FileOutputStream(checkpoint), "UTF-8");
+            writer.write("3\n");
+            writer.close();
+            write(Arrays.asList(
+                    "{\"op\":\"step\",\"n\":\"1\"}",
+                    "{\"op\":\"step\",\"n\":\"2\"}",
+                    "{\"op\":\"step\",\"n\":\"3\"}"));
+            RecordingRunner runner = new RecordingRunner();
+
+            assertEquals(0, runner.run(workload, checkpoint));
+
+            assertEquals(Arrays.asList("begin 3", "end 3"), runner.events);
+            assertEquals("4\n", new String(Files.readAllBytes(checkpoint.toPath()), "UTF-8"));
+        } finally {
+            checkpoint.delete();
+            checkpointFailures.delete();
+        }
+    }
+
+    private void write(List<String> lines) throws Exception {
+        Writer writer = new OutputStreamWriter(new FileOutputStream(workload), "UTF-8");
+        try {
+            for (String line : lines) {
+                writer.write(line);
+                writer.write('\n');
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    private static final class RecordingRunner extends WorkloadRunner {
+
+        final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+
+        RecordingRunner() throws Exception {
+            super(new ClientBootstrap(null, null, null, new StartupTimer()), 8, 16);
+        }
+
+        void dispatch(String op, Map<String, String> f) throws Exception {
+            events.add("begin " + f.get("n"));
+            if (f.get("sleep") != null) {
+                Thread.sleep(Long.parseLong(f.get("sleep")));
+            }
+            if (f.get("fail") != null) {
+                throw new IllegalStateException("Failed on purpose");
+            }
+            events.add("end " + f.get("n"));
+        }
+    }
+}